@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.JNativeUnsafe;
+import jnative.utils.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of an {@link EPoll} loop iteration against a {@link Selector}:
+ * a bare wakeup, through an eventfd or {@link Selector#wakeup()}, and the
+ * dispatch of <code>readyChannels</code> readable channels, each drained of
+ * the byte written to it. The epoll loop uses native socket pairs and the
+ * selector JDK pipes, so neither reaches into JDK internals for an fd.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class EPollBenchmark {
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+
+  private static final int MAX_EVENTS = 1024;
+
+  @State(Scope.Thread)
+  public static class EPollLoop {
+    @Param({"1", "16", "256"})
+    int readyChannels;
+
+    // the read and write ends of each socket pair
+    int[] sources;
+    int[] sinks;
+    int epfd;
+    int eventFd;
+    NativeObject events;
+    NativeObject scratch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      scratch = new NativeObject(1, false);
+      sources = new int[readyChannels];
+      sinks = new int[readyChannels];
+      int[] pair = new int[2];
+      for (int i = 0; i < readyChannels; i++) {
+        EPoll.socketPair(pair);
+        EPoll.setNonBlocking(pair[0], true);
+        sources[i] = pair[0];
+        sinks[i] = pair[1];
+      }
+      epfd = EPoll.epollCreate();
+      eventFd = EPoll.eventFd();
+      register(eventFd);
+      for (int fd : sources) {
+        register(fd);
+      }
+      events = new NativeObject((long) MAX_EVENTS * EPoll.SIZEOF_EPOLLEVENT, false);
+    }
+
+    private void register(int fd) throws IOException {
+      int rc = EPoll.epollCtl(epfd, EPoll.EPOLL_CTL_ADD, fd, EPoll.EPOLLIN);
+      if (rc != 0) {
+        throw new NativeIOException("epoll_ctl", rc);
+      }
+    }
+
+    void signalAll() throws IOException {
+      for (int fd : sinks) {
+        EPoll.write(fd, scratch.address(), 1);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      events.free();
+      scratch.free();
+      AIO.close(eventFd);
+      AIO.close(epfd);
+      for (int i = 0; i < readyChannels; i++) {
+        AIO.close(sources[i]);
+        AIO.close(sinks[i]);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class SelectorLoop {
+    @Param({"1", "16", "256"})
+    int readyChannels;
+
+    Pipe[] pipes;
+    ByteBuffer one;
+
+    void openPipes() throws IOException {
+      pipes = new Pipe[readyChannels];
+      for (int i = 0; i < readyChannels; i++) {
+        pipes[i] = Pipe.open();
+        pipes[i].source().configureBlocking(false);
+      }
+      one = ByteBuffer.allocateDirect(1);
+    }
+
+    void signalAll() throws IOException {
+      for (Pipe pipe : pipes) {
+        one.clear();
+        pipe.sink().write(one);
+      }
+    }
+
+    void closePipes() throws IOException {
+      for (Pipe pipe : pipes) {
+        pipe.sink().close();
+        pipe.source().close();
+      }
+    }
+
+    Selector selector;
+    ByteBuffer scratch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      openPipes();
+      selector = Selector.open();
+      for (Pipe pipe : pipes) {
+        pipe.source().register(selector, SelectionKey.OP_READ);
+      }
+      scratch = ByteBuffer.allocateDirect(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      selector.close();
+      closePipes();
+    }
+  }
+
+  @Benchmark
+  public long epollWakeup(EPollLoop loop) throws IOException {
+    EPoll.eventFdWrite(loop.eventFd, 1);
+    EPoll.epollWait(loop.epfd, loop.events.address(), MAX_EVENTS, -1);
+    return EPoll.eventFdRead(loop.eventFd);
+  }
+
+  @Benchmark
+  public int selectorWakeup(SelectorLoop loop) throws IOException {
+    loop.selector.wakeup();
+    return loop.selector.select();
+  }
+
+  @Benchmark
+  public int epollDispatch(EPollLoop loop) throws IOException {
+    loop.signalAll();
+    int dispatched = 0;
+    while (dispatched < loop.readyChannels) {
+      int n = EPoll.epollWait(loop.epfd, loop.events.address(), MAX_EVENTS, -1);
+      for (int i = 0; i < n; i++) {
+        long event = loop.events.address() + (long) i * EPoll.SIZEOF_EPOLLEVENT;
+        int fd = unsafe.getInt(event + EPoll.OFFSETOF_FD);
+        if (EPoll.read(fd, loop.scratch.address(), 1) > 0) {
+          dispatched++;
+        }
+      }
+    }
+    return dispatched;
+  }
+
+  @Benchmark
+  public int selectorDispatch(SelectorLoop loop) throws IOException {
+    loop.signalAll();
+    int dispatched = 0;
+    while (dispatched < loop.readyChannels) {
+      loop.selector.select();
+      Iterator<SelectionKey> keys = loop.selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        loop.scratch.clear();
+        if (((Pipe.SourceChannel) key.channel()).read(loop.scratch) > 0) {
+          dispatched++;
+        }
+      }
+    }
+    return dispatched;
+  }
+}
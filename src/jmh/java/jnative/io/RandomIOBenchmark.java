@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random block reads and writes through {@link AIO}, {@link FileChannel} and
+ * {@link AsynchronousFileChannel}.
+ * <p>
+ * One operation is a batch of <code>queueDepth</code> requests for
+ * <code>blockSize</code> bytes each at random aligned offsets, completed
+ * before the next batch starts: AIO submits the batch in one call and reaps
+ * it, the asynchronous channel issues it as futures, and the plain channel
+ * has no choice but to run it one request at a time. Throughput is in
+ * batches per second; the sample mode gives the p99 latency of a batch.
+ * <p>
+ * AIO opens the file with O_DIRECT: without it Linux completes every
+ * request inside <code>io_submit</code> and the queue depth makes no
+ * difference. The file is created in the directory named by the
+ * <code>jnative.bench.dir</code> system property, the working directory by
+ * default, and the benchmark refuses to run where O_DIRECT is not supported,
+ * e.g. on tmpfs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RandomIOBenchmark {
+
+  @Param({"4096", "65536"})
+  int blockSize;
+
+  @Param({"1", "8", "32"})
+  int queueDepth;
+
+  @Param({"64"})
+  int fileSizeMB;
+
+  private File file;
+  private long blocks;
+  private final Random random = new Random(42);
+
+  private int fd;
+  private AIO aio;
+  private NativeObject buffers;
+
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private AsynchronousFileChannel asyncChannel;
+  private ByteBuffer[] byteBuffers;
+  private Future<?>[] futures;
+
+  static File benchDir() {
+    String dir = System.getProperty("jnative.bench.dir");
+    if (dir != null) {
+      return new File(dir);
+    }
+    return new File(System.getProperty("user.dir"));
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    file = File.createTempFile("jnative-bench-", ".dat", benchDir());
+    try {
+      fd = AIO.open(file.getPath(), AIO.O_RDWR | AIO.O_DIRECT);
+    } catch (IOException e) {
+      file.delete();
+      throw new IllegalStateException("Cannot open " + file + " with O_DIRECT, set "
+          + "jnative.bench.dir to a directory on a block device", e);
+    }
+    long size = fileSizeMB * 1024L * 1024L;
+    blocks = size / blockSize;
+
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    ByteBuffer fill = ByteBuffer.allocateDirect(1024 * 1024);
+    byte[] chunk = new byte[fill.capacity()];
+    random.nextBytes(chunk);
+    fill.put(chunk);
+    for (long position = 0; position < size; position += fill.capacity()) {
+      fill.clear();
+      channel.write(fill, position);
+    }
+    channel.force(false);
+    asyncChannel = AsynchronousFileChannel.open(file.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    aio = new AIO(queueDepth);
+    buffers = new NativeObject((long) queueDepth * blockSize, true);
+    byteBuffers = new ByteBuffer[queueDepth];
+    for (int i = 0; i < queueDepth; i++) {
+      byteBuffers[i] = ByteBuffer.allocateDirect(blockSize);
+    }
+    futures = new Future<?>[queueDepth];
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    aio.close();
+    buffers.free();
+    AIO.close(fd);
+    asyncChannel.close();
+    channel.close();
+    raf.close();
+    file.delete();
+  }
+
+  private long randomOffset() {
+    return (long) (random.nextDouble() * blocks) * blockSize;
+  }
+
+  private long aioBatch(boolean write) throws IOException {
+    for (int i = 0; i < queueDepth; i++) {
+      long address = buffers.address() + (long) i * blockSize;
+      if (write) {
+        aio.prepareWrite(fd, randomOffset(), address, blockSize, i);
+      } else {
+        aio.prepareRead(fd, randomOffset(), address, blockSize, i);
+      }
+    }
+    aio.submit();
+    long bytes = 0;
+    for (int done = 0; done < queueDepth; ) {
+      int n = aio.poll(-1);
+      for (int i = 0; i < n; i++) {
+        long res = aio.eventResult(i);
+        if (res < 0) {
+          throw new IllegalStateException("AIO failed with errno " + -res);
+        }
+        bytes += res;
+      }
+      done += n;
+    }
+    return bytes;
+  }
+
+  @Benchmark
+  public long aioRead() throws IOException {
+    return aioBatch(false);
+  }
+
+  @Benchmark
+  public long aioWrite() throws IOException {
+    return aioBatch(true);
+  }
+
+  private long channelBatch(boolean write) throws IOException {
+    long bytes = 0;
+    for (int i = 0; i < queueDepth; i++) {
+      ByteBuffer buffer = byteBuffers[i];
+      buffer.clear();
+      bytes += write ? channel.write(buffer, randomOffset()) : channel.read(buffer, randomOffset());
+    }
+    return bytes;
+  }
+
+  @Benchmark
+  public long fileChannelRead() throws IOException {
+    return channelBatch(false);
+  }
+
+  @Benchmark
+  public long fileChannelWrite() throws IOException {
+    return channelBatch(true);
+  }
+
+  private long asyncBatch(boolean write) throws Exception {
+    for (int i = 0; i < queueDepth; i++) {
+      ByteBuffer buffer = byteBuffers[i];
+      buffer.clear();
+      futures[i] = write ? asyncChannel.write(buffer, randomOffset())
+          : asyncChannel.read(buffer, randomOffset());
+    }
+    long bytes = 0;
+    for (int i = 0; i < queueDepth; i++) {
+      bytes += (Integer) futures[i].get();
+    }
+    return bytes;
+  }
+
+  @Benchmark
+  public long asyncFileChannelRead() throws Exception {
+    return asyncBatch(false);
+  }
+
+  @Benchmark
+  public long asyncFileChannelWrite() throws Exception {
+    return asyncBatch(true);
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sun.misc.Unsafe;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocating and freeing a {@link NativeObject} against
+ * {@link ByteBuffer#allocateDirect(int)}, whose memory is zeroed, accounted
+ * against the direct memory limit and only released once the buffer is
+ * collected. The zeroed variant makes the native side do the same clearing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NativeObjectBenchmark {
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+
+  @Param({"64", "4096", "65536"})
+  int size;
+
+  @Benchmark
+  public long nativeObject() {
+    NativeObject object = new NativeObject(size, false);
+    long address = object.address();
+    object.free();
+    return address;
+  }
+
+  @Benchmark
+  public long nativeObjectZeroed() {
+    NativeObject object = new NativeObject(size, false);
+    long address = object.address();
+    unsafe.setMemory(address, size, (byte) 0);
+    object.free();
+    return address;
+  }
+
+  @Benchmark
+  public long nativeObjectPageAligned() {
+    NativeObject object = new NativeObject(size, true);
+    long address = object.address();
+    object.free();
+    return address;
+  }
+
+  @Benchmark
+  public ByteBuffer allocateDirect() {
+    return ByteBuffer.allocateDirect(size);
+  }
+}
@@ -22,6 +22,18 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.jar.JarEntry;
 
 public class JNativeCodeLoader {
   public static final String LIBRARY_NAME = "jnative";
@@ -33,11 +45,24 @@ public class JNativeCodeLoader {
    */
   public static final String USE_BINARIES_ON_LIB_PATH =
       "jnative.use.libpath";
+  /**
+   * The system property naming the directory the embedded native library is
+   * extracted to. Extractions are kept across JVMs, one subdirectory per
+   * embedded library, and reused once verified against the digest stored
+   * with them. Defaults to <code>${java.io.tmpdir}/jnative-${user.name}</code>.
+   */
+  public static final String CACHE_DIR = "jnative.cache.dir";
+
+  /** Age after which an unfinished extraction is considered abandoned. */
+  private static final long STALE_UNPACK_MILLIS = 10 * 60 * 1000L;
 
   private static final Log LOG = LogFactory.getLog(JNativeCodeLoader.class);
   private static boolean nativeLibraryLoaded = false;
+  private static long loadTimeNanos = -1;
+  private static boolean loadedFromCache = false;
 
   static {
+    long start = System.nanoTime();
     try {
       //try to load the lib
       if (!useBinariesOnLibPath()) {
@@ -45,14 +70,20 @@ public class JNativeCodeLoader {
         if (unpackedFile != null) { // the file was successfully unpacked
           String path = unpackedFile.getAbsolutePath();
           System.load(path);
-          LOG.info("Loaded jnative library from the embedded binaries");
+          loadTimeNanos = System.nanoTime() - start;
+          LOG.info("Loaded jnative library from the embedded binaries in "
+              + loadTimeNanos / 1000000 + " ms" + (loadedFromCache ? " (cached)" : ""));
         } else { // fall back
           System.loadLibrary(LIBRARY_NAME);
-          LOG.info("Loaded jnative library from the library path");
+          loadTimeNanos = System.nanoTime() - start;
+          LOG.info("Loaded jnative library from the library path in "
+              + loadTimeNanos / 1000000 + " ms");
         }
       } else {
         System.loadLibrary(LIBRARY_NAME);
-        LOG.info("Loaded jnative library from the library path");
+        loadTimeNanos = System.nanoTime() - start;
+        LOG.info("Loaded jnative library from the library path in "
+            + loadTimeNanos / 1000000 + " ms");
       }
       nativeLibraryLoaded = true;
     } catch (Throwable t) {
@@ -69,23 +100,39 @@ public class JNativeCodeLoader {
     return nativeLibraryLoaded;
   }
 
+  /**
+   * Returns the time it took to locate, extract if needed, and load the
+   * native library, in nanoseconds, or -1 if it was not loaded.
+   */
+  public static long getLoadTimeNanos() {
+    return loadTimeNanos;
+  }
+
+  /**
+   * Returns whether the library was loaded from an earlier extraction in the
+   * cache directory rather than written out by this JVM.
+   */
+  public static boolean isLoadedFromCache() {
+    return loadedFromCache;
+  }
+
   private static boolean useBinariesOnLibPath() {
     return Boolean.getBoolean(USE_BINARIES_ON_LIB_PATH);
   }
 
   /**
    * Locates the native library in the jar (loadble by the classloader really),
-   * unpacks it in a temp location, and returns that file. If the native library
-   * is not found by the classloader, returns null.
+   * unpacks it in the cache directory unless a valid copy is already there,
+   * and returns that file. If the native library is not found by the
+   * classloader, returns null.
    */
   private static File unpackBinaries() {
     // locate the binaries inside the jar
     String fileName = System.mapLibraryName(LIBRARY_NAME);
     String directory = getDirectoryLocation();
     // use the current defining classloader to load the resource
-    InputStream is =
-        JNativeCodeLoader.class.getResourceAsStream(directory + "/" + fileName);
-    if (is == null) {
+    URL url = JNativeCodeLoader.class.getResource(directory + "/" + fileName);
+    if (url == null) {
       // specific to mac
       // on mac the filename can be either .dylib or .jnilib: try again with the
       // alternate name
@@ -95,16 +142,193 @@ public class JNativeCodeLoader {
         } else if (fileName.endsWith(".jnilib")) {
           fileName = fileName.replace(".jnilib", ".dylib");
         }
-        is = JNativeCodeLoader.class.getResourceAsStream(directory + "/" + fileName);
+        url = JNativeCodeLoader.class.getResource(directory + "/" + fileName);
       }
       // the OS-specific library was not found: fall back on the library path
-      if (is == null) {
+      if (url == null) {
         return null;
       }
     }
 
-    // write the file
-    byte[] buffer = new byte[8192];
+    File cacheDir = getCacheDir();
+    if (cacheDir != null) {
+      try {
+        return unpackCached(cacheDir, fileName, url);
+      } catch (IOException e) {
+        LOG.warn("could not use the cache directory " + cacheDir
+            + ", unpacking to a temporary file", e);
+      }
+    }
+    try {
+      return unpackTemporary(fileName, readFully(url));
+    } catch (IOException e) {
+      LOG.error("could not read the binaries", e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the extraction of the library at <code>url</code> under
+   * <code>cacheDir/key/fileName</code>, writing it first if no valid copy
+   * exists. The key is the CRC and size the jar records for the entry, so a
+   * valid copy is found without reading the embedded library; only outside a
+   * jar is the library read and hashed to key it. Each copy is stored with
+   * its SHA-256 and verified against it. Copies are written to a temporary
+   * file and renamed into place, so a concurrent JVM only ever sees complete
+   * files; the lock keeps JVMs starting together from all writing the same
+   * copy.
+   */
+  private static File unpackCached(File cacheDir, String fileName, URL url)
+      throws IOException {
+    byte[] binaries = null;
+    String key = jarEntryKey(url);
+    if (key == null) {
+      binaries = readFully(url);
+      key = sha256(binaries);
+    }
+    File dir = new File(cacheDir, key);
+    File unpackedFile = new File(dir, fileName);
+    File digestFile = new File(dir, fileName + ".sha256");
+    if (isValid(unpackedFile, digestFile)) {
+      loadedFromCache = true;
+      LOG.debug("reusing unpacked path: " + unpackedFile);
+      return unpackedFile;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Cannot create " + dir);
+    }
+
+    RandomAccessFile lockFile = new RandomAccessFile(new File(dir, ".lock"), "rw");
+    try {
+      FileChannel channel = lockFile.getChannel();
+      FileLock lock = null;
+      try {
+        lock = channel.lock();
+      } catch (OverlappingFileLockException e) {
+        // held by another class loader of this JVM, the rename keeps us safe
+      }
+      try {
+        // another JVM may have finished while we waited
+        if (isValid(unpackedFile, digestFile)) {
+          loadedFromCache = true;
+          return unpackedFile;
+        }
+        // left behind by JVMs that died while unpacking; recent ones may
+        // still be written by another class loader of this JVM
+        File[] stale = dir.listFiles();
+        long cutoff = System.currentTimeMillis() - STALE_UNPACK_MILLIS;
+        for (int i = 0; stale != null && i < stale.length; i++) {
+          if (stale[i].getName().startsWith("unpacking-") && stale[i].lastModified() < cutoff) {
+            stale[i].delete();
+          }
+        }
+        if (binaries == null) {
+          binaries = readFully(url);
+        }
+        // the library first: a digest without it is never taken as valid
+        moveIntoPlace(dir, binaries, unpackedFile, true);
+        moveIntoPlace(dir, sha256(binaries).getBytes("US-ASCII"), digestFile, false);
+        LOG.debug("unpacked path: " + unpackedFile);
+        return unpackedFile;
+      } finally {
+        if (lock != null) {
+          lock.release();
+        }
+      }
+    } finally {
+      lockFile.close();
+    }
+  }
+
+  /**
+   * Returns a cache key from the CRC and size the jar records for the entry
+   * at <code>url</code>, or null if it is not in a jar or they are unknown.
+   */
+  private static String jarEntryKey(URL url) throws IOException {
+    URLConnection connection = url.openConnection();
+    if (!(connection instanceof JarURLConnection)) {
+      return null;
+    }
+    JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+    if (entry == null || entry.getCrc() < 0 || entry.getSize() < 0) {
+      return null;
+    }
+    return "crc-" + Long.toHexString(entry.getCrc()) + "-" + entry.getSize();
+  }
+
+  private static void moveIntoPlace(File dir, byte[] content, File target, boolean executable)
+      throws IOException {
+    File tmp = File.createTempFile("unpacking-", ".tmp", dir);
+    try {
+      FileOutputStream os = new FileOutputStream(tmp);
+      try {
+        os.write(content);
+        os.getFD().sync();
+      } finally {
+        os.close();
+      }
+      if (executable) {
+        tmp.setExecutable(true, false);
+      }
+      Files.move(tmp.toPath(), target.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Checks an earlier extraction against the digest stored with it.
+   */
+  private static boolean isValid(File file, File digestFile) {
+    if (!file.isFile() || !digestFile.isFile()) {
+      return false;
+    }
+    try {
+      String expected = new String(readFully(digestFile), "US-ASCII").trim();
+      return expected.equals(sha256(readFully(file)));
+    } catch (IOException e) {
+      LOG.debug("could not verify " + file, e);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the cache directory, or null if it cannot be used safely: a
+   * library loaded from a directory others can write to could be swapped.
+   */
+  private static File getCacheDir() {
+    String configured = System.getProperty(CACHE_DIR);
+    File dir = configured != null ? new File(configured)
+        : new File(System.getProperty("java.io.tmpdir"),
+            LIBRARY_NAME + "-" + System.getProperty("user.name"));
+    try {
+      if (!dir.isDirectory()) {
+        try {
+          Files.createDirectories(dir.toPath(), PosixFilePermissions.asFileAttribute(
+              PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+          Files.createDirectories(dir.toPath());
+        }
+      }
+      String owner = Files.getOwner(dir.toPath()).getName();
+      if (!owner.equals(System.getProperty("user.name"))) {
+        LOG.warn("Not using cache directory " + dir + " owned by " + owner);
+        return null;
+      }
+      return dir;
+    } catch (IOException e) {
+      LOG.warn("Cannot create cache directory " + dir, e);
+      return null;
+    } catch (UnsupportedOperationException e) {
+      return dir;
+    }
+  }
+
+  /**
+   * Unpacks to a fresh temporary file, deleted on exit.
+   */
+  private static File unpackTemporary(String fileName, byte[] binaries) {
     OutputStream os = null;
     try {
       // prepare the unpacked file location
@@ -113,10 +337,7 @@ public class JNativeCodeLoader {
       unpackedFile.deleteOnExit();
 
       os = new FileOutputStream(unpackedFile);
-      int read = 0;
-      while ((read = is.read(buffer)) != -1) {
-        os.write(buffer, 0, read);
-      }
+      os.write(binaries);
 
       // set the execution permission
       unpackedFile.setExecutable(true, false);
@@ -127,13 +348,55 @@ public class JNativeCodeLoader {
       LOG.error("could not unpack the binaries", e);
       return null;
     } finally {
-      try { is.close(); } catch (IOException ignore) {}
       if (os != null) {
         try { os.close(); } catch (IOException ignore) {}
       }
     }
   }
 
+  private static byte[] readFully(URL url) throws IOException {
+    InputStream is = url.openStream();
+    try {
+      return readFully(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    try {
+      return readFully(is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256 * 1024);
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static String sha256(byte[] data) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest(data)) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
   private static String getDirectoryLocation() {
     String osName = getOsName().replace(' ', '_');
     boolean windows = osName.toLowerCase().contains("windows");
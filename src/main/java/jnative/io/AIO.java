@@ -19,19 +19,25 @@
 package jnative.io;
 
 import jnative.JNativeCodeLoader;
+import jnative.utils.CRC32C;
+import jnative.utils.JNativeUnsafe;
 import jnative.utils.NativeObject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import sun.misc.Unsafe;
 import sun.nio.ch.DirectBuffer;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * This class is not thread safe.
+ * This class is not thread safe. Preparing and submitting requests may
+ * however run concurrently with {@link #poll(long)} and the event accessors,
+ * provided that each of the two sides is confined to one thread at a time.
  */
 public class AIO {
 
@@ -73,6 +79,24 @@ public class AIO {
   public static final int O_NDELAY = O_NONBLOCK;
 
 
+  // Modes for fallocate() from linux/falloc.h
+  public static final int FALLOC_FL_KEEP_SIZE  = 0x01;
+  public static final int FALLOC_FL_PUNCH_HOLE = 0x02;
+  public static final int FALLOC_FL_ZERO_RANGE = 0x10;
+
+  // Advice for posix_fadvise() from bits/fcntl.h
+  public static final int POSIX_FADV_NORMAL     = 0;
+  public static final int POSIX_FADV_RANDOM     = 1;
+  public static final int POSIX_FADV_SEQUENTIAL = 2;
+  public static final int POSIX_FADV_WILLNEED   = 3;
+  public static final int POSIX_FADV_DONTNEED   = 4;
+  public static final int POSIX_FADV_NOREUSE    = 5;
+
+  // Flags for sync_file_range() from bits/fcntl-linux.h
+  public static final int SYNC_FILE_RANGE_WAIT_BEFORE = 1;
+  public static final int SYNC_FILE_RANGE_WRITE       = 2;
+  public static final int SYNC_FILE_RANGE_WAIT_AFTER  = 4;
+
   public static final int IO_CMD_PREAD   = 0;
   public static final int IO_CMD_PWRITE  = 1;
   public static final int IO_CMD_FSYNC   = 2;
@@ -82,29 +106,148 @@ public class AIO {
   public static final int IO_CMD_PREADV  = 7;
   public static final int IO_CMD_PWRITEV = 8;
 
+  /**
+   * Size of the CRC32C trailer of checksummed blocks, see
+   * {@link #prepareWrite(int, long, long, int, long, boolean)}.
+   */
+  public static final int CHECKSUM_SIZE = 4;
+
+  /**
+   * Completion result of a verified read whose checksum did not match
+   * (<code>-EBADMSG</code>).
+   */
+  public static final long CHECKSUM_MISMATCH = -74;
+
+  /** Maximum number of verified reads in flight, the size of the context. */
+  static final int MAX_VERIFIED_READS = 8192;
+
   static class IOCommand {
     int type;
     int fd;
     long offset;
+    long address;
+    int length;
+    long tag;
+    boolean checksum;
+    // the checksum stage slot of a verified read, while it is submitted
+    int slot = -1;
+    // keeps the buffer reachable until the command is submitted
     ByteBuffer data;
 
-    IOCommand(int type, int fd, long offset, ByteBuffer data) {
+    IOCommand(int type, int fd, long offset, long address, int length,
+              long tag, boolean checksum, ByteBuffer data) {
       this.type = type;
       this.fd = fd;
       this.offset = offset;
+      this.address = address;
+      this.length = length;
+      this.tag = tag;
+      this.checksum = checksum;
       this.data = data;
     }
 
   }
 
+  /**
+   * Tracks the verified reads in flight. Each one is submitted with an iocb
+   * of its own slot here rather than one of the batch, so a completion is
+   * recognized as verified by the address of its iocb, whatever its tag. It
+   * is shared by the submitting and the polling side, hence synchronized.
+   */
+  static class ChecksumStage {
+    private final NativeObject iocbs =
+        new NativeObject((long) MAX_VERIFIED_READS * SIZE_IOCB, false);
+    private final long[] addresses = new long[MAX_VERIFIED_READS];
+    private final int[] lengths = new int[MAX_VERIFIED_READS];
+    private final int[] freeSlots = new int[MAX_VERIFIED_READS];
+    private int freeCount;
+
+    ChecksumStage() {
+      for (int i = 0; i < MAX_VERIFIED_READS; i++) {
+        freeSlots[i] = i;
+      }
+      freeCount = MAX_VERIFIED_READS;
+    }
+
+    /**
+     * @return the slot of the read, or -1 if all slots are in use
+     */
+    synchronized int register(long address, int length) {
+      if (freeCount == 0) {
+        return -1;
+      }
+      int slot = freeSlots[--freeCount];
+      addresses[slot] = address;
+      lengths[slot] = length;
+      return slot;
+    }
+
+    synchronized void release(int slot) {
+      freeSlots[freeCount++] = slot;
+    }
+
+    long iocb(int slot) {
+      return iocbs.address() + (long) slot * SIZE_IOCB;
+    }
+
+    /**
+     * Returns the slot whose iocb is at <code>iocb</code>, or -1 if it is
+     * not one of this stage's.
+     */
+    int slotOf(long iocb) {
+      long offset = iocb - iocbs.address();
+      if (offset < 0 || offset >= (long) MAX_VERIFIED_READS * SIZE_IOCB) {
+        return -1;
+      }
+      return (int) (offset / SIZE_IOCB);
+    }
+
+    /**
+     * Releases the slot of a completed verified read and returns the result
+     * to report: unchanged unless the read is complete and its trailer does
+     * not match its content.
+     */
+    long verify(int slot, long res) {
+      long address;
+      int length;
+      synchronized (this) {
+        address = addresses[slot];
+        length = lengths[slot];
+        freeSlots[freeCount++] = slot;
+      }
+      if (res != length) {
+        return res;
+      }
+      int expected = unsafe.getInt(address + length - CHECKSUM_SIZE);
+      int actual = toLittleEndian(CRC32C.compute(address, length - CHECKSUM_SIZE));
+      return expected == actual ? res : CHECKSUM_MISMATCH;
+    }
+
+    synchronized void free() {
+      iocbs.free();
+    }
+  }
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+  private static final int SIZE_IO_EVENT = sizeOfIoEvent();
+  private static final int OFFSETOF_EVENT_DATA = ioEventDataOffset();
+  private static final int OFFSETOF_EVENT_RES = ioEventResOffset();
+  private static final int OFFSETOF_EVENT_OBJ = ioEventObjOffset();
+
   private final long context;
   private List<IOCommand> pendingOps;
   private int eventFd;
-  private long[] events;
+  private final int maxEvents;
+  private final NativeObject events;
+  private NativeObject iocbs;
+  private int iocbsCapacity;
+  private volatile ChecksumStage checksums;
+  private int accepted;
 
   public AIO(int maxEvents) {
     context = setup();
-    events = new long[maxEvents];
+    this.maxEvents = maxEvents;
+    events = new NativeObject(maxEvents * SIZE_IO_EVENT, false);
     pendingOps = new ArrayList<IOCommand>();
   }
 
@@ -113,11 +256,89 @@ public class AIO {
   }
 
   public void prepareRead(int fd, long offset, ByteBuffer dst)  {
-    pendingOps.add(new IOCommand(IO_CMD_PREAD, fd, offset, getDirect(dst)));
+    prepareRead(fd, offset, dst, 0L);
+  }
+
+  /**
+   * Queues a read into the remaining bytes of <code>dst</code>, which must be
+   * a direct buffer. <code>tag</code> is handed back with the completion, see
+   * {@link #eventTag(int)}.
+   */
+  public void prepareRead(int fd, long offset, ByteBuffer dst, long tag)  {
+    prepareRead(fd, offset, dst, tag, false);
+  }
+
+  public void prepareRead(int fd, long offset, ByteBuffer dst, long tag, boolean verify)  {
+    if (!(dst instanceof DirectBuffer)) {
+      throw new IllegalArgumentException("Can only read into a direct buffer");
+    }
+    pendingOps.add(new IOCommand(IO_CMD_PREAD, fd, offset,
+        ((DirectBuffer) dst).address() + dst.position(), dst.remaining(), tag, verify, dst));
+  }
+
+  /**
+   * Queues a read of <code>length</code> bytes into native memory at
+   * <code>address</code>, which must stay valid until the read completes.
+   */
+  public void prepareRead(int fd, long offset, long address, int length, long tag) {
+    prepareRead(fd, offset, address, length, tag, false);
+  }
+
+  /**
+   * Queues a read as above. If <code>verify</code> is set, the block read is
+   * expected to end with a CRC32C trailer as written by
+   * {@link #prepareWrite(int, long, long, int, long, boolean)}: when the read
+   * completes in full, {@link #poll(long)} checks the trailer and reports a
+   * mismatch as {@link #CHECKSUM_MISMATCH}. At most
+   * {@link #MAX_VERIFIED_READS} verified reads can be in flight.
+   */
+  public void prepareRead(int fd, long offset, long address, int length, long tag,
+                          boolean verify) {
+    pendingOps.add(new IOCommand(IO_CMD_PREAD, fd, offset, address, length, tag, verify, null));
   }
 
   public void prepareWrite(int fd, long offset, ByteBuffer src) {
-    pendingOps.add(new IOCommand(IO_CMD_PWRITE, fd, offset, getDirect(src)));
+    prepareWrite(fd, offset, src, 0L);
+  }
+
+  public void prepareWrite(int fd, long offset, ByteBuffer src, long tag) {
+    prepareWrite(fd, offset, src, tag, false);
+  }
+
+  public void prepareWrite(int fd, long offset, ByteBuffer src, long tag, boolean seal) {
+    ByteBuffer bb = getDirect(src);
+    prepareWrite(fd, offset, ((DirectBuffer) bb).address() + bb.position(),
+        bb.remaining(), tag, seal);
+    pendingOps.get(pendingOps.size() - 1).data = bb;
+  }
+
+  /**
+   * Queues a write of <code>length</code> bytes from native memory at
+   * <code>address</code>, which must stay valid until the write completes.
+   */
+  public void prepareWrite(int fd, long offset, long address, int length, long tag) {
+    prepareWrite(fd, offset, address, length, tag, false);
+  }
+
+  /**
+   * Queues a write as above. If <code>seal</code> is set, the CRC32C of all
+   * but the last {@link #CHECKSUM_SIZE} bytes is computed right away and
+   * stored little endian in those last bytes.
+   */
+  public void prepareWrite(int fd, long offset, long address, int length, long tag,
+                           boolean seal) {
+    if (seal) {
+      if (length < CHECKSUM_SIZE) {
+        throw new IllegalArgumentException("No room for a checksum in " + length + " bytes");
+      }
+      unsafe.putInt(address + length - CHECKSUM_SIZE,
+          toLittleEndian(CRC32C.compute(address, length - CHECKSUM_SIZE)));
+    }
+    pendingOps.add(new IOCommand(IO_CMD_PWRITE, fd, offset, address, length, tag, false, null));
+  }
+
+  private static int toLittleEndian(int value) {
+    return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
   }
 
   private ByteBuffer getDirect(ByteBuffer buf) {
@@ -128,42 +349,164 @@ public class AIO {
     int lim = buf.limit();
     assert (pos <= lim);
     int rem = (pos <= lim ? lim - pos : 0);
-    ByteBuffer bb = ByteBuffer.allocate(rem);
-    bb.put(buf);
+    ByteBuffer bb = ByteBuffer.allocateDirect(rem);
+    bb.put(buf.duplicate());
     bb.flip();
     return bb;
   }
 
-  public void submit() {
-    NativeObject eventArray = new NativeObject(pendingOps.size() * SIZE_IOCB, true);
-    long eventArrayAddress = eventArray.address();
+  /**
+   * Submits the queued requests. If the kernel rejects part of the batch,
+   * e.g. with EAGAIN once the context is full, the requests accepted so far
+   * still complete and the remaining ones are discarded; see
+   * {@link #accepted()}.
+   *
+   * @throws NativeIOException if <code>io_submit</code> fails
+   * @throws IllegalStateException if too many verified reads are in flight,
+   *                               in which case nothing is submitted
+   */
+  public void submit() throws IOException {
+    int nr = pendingOps.size();
+    if (nr == 0) {
+      return;
+    }
+    accepted = 0;
+    registerVerifiedReads(nr);
+    ensureIocbs(nr);
+    // the iocbs come first, followed by the array of pointers to them
+    long iocbsAddress = iocbs.address();
+    long pointersAddress = iocbsAddress + (long) iocbsCapacity * SIZE_IOCB;
     // TODO: more efficient way, pass the command list to native code through only one jni call
-    for (int i = 0; i < pendingOps.size(); i++) {
+    for (int i = 0; i < nr; i++) {
+      IOCommand command = pendingOps.get(i);
+      long iocb = command.slot >= 0 ? checksums.iocb(command.slot)
+          : iocbsAddress + (long) i * SIZE_IOCB;
+      prepare(iocb, command.type, command.fd, command.offset,
+          command.address, command.length, eventFd, command.tag);
+      unsafe.putAddress(pointersAddress + (long) i * unsafe.addressSize(), iocb);
+    }
+    // io_submit may accept only part of the batch
+    int done = 0;
+    try {
+      while (done < nr) {
+        done += (int) submit0(context, nr - done,
+            pointersAddress + (long) done * unsafe.addressSize());
+      }
+    } finally {
+      accepted = done;
+      for (int i = done; i < nr; i++) {
+        IOCommand command = pendingOps.get(i);
+        if (command.slot >= 0) {
+          checksums.release(command.slot);
+        }
+      }
+      pendingOps.clear();
+    }
+  }
+
+  /**
+   * Takes a checksum stage slot for each verified read queued, all or none.
+   */
+  private void registerVerifiedReads(int nr) {
+    for (int i = 0; i < nr; i++) {
       IOCommand command = pendingOps.get(i);
+      if (!command.checksum) {
+        continue;
+      }
+      command.slot = checksumStage().register(command.address, command.length);
+      if (command.slot < 0) {
+        for (int j = 0; j < i; j++) {
+          if (pendingOps.get(j).slot >= 0) {
+            checksums.release(pendingOps.get(j).slot);
+          }
+        }
+        pendingOps.clear();
+        throw new IllegalStateException("More than " + MAX_VERIFIED_READS
+            + " verified reads in flight");
+      }
+    }
+  }
 
-      final ByteBuffer bb = command.data;
-      int pos = bb.position();
-      int lim = bb.limit();
-      assert (pos <= lim);
-      int rem = (pos <= lim ? lim - pos : 0);
+  /**
+   * Returns the number of requests the last {@link #submit()} handed to the
+   * kernel, in submission order, also when it failed.
+   */
+  public int accepted() {
+    return accepted;
+  }
 
-      prepare(eventArrayAddress + i * SIZE_IOCB, command.type, command.fd,
-          command.offset,
-          ((DirectBuffer) bb).address() + pos,
-          rem, eventFd);
+  private void ensureIocbs(int nr) {
+    if (nr <= iocbsCapacity) {
+      return;
+    }
+    if (iocbs != null) {
+      iocbs.free();
     }
-    submit0(context, pendingOps.size(), eventArrayAddress);
-    eventArray.free();
-    pendingOps.clear();
+    iocbsCapacity = Math.max(nr, Math.max(16, iocbsCapacity * 2));
+    iocbs = new NativeObject(iocbsCapacity * (SIZE_IOCB + unsafe.addressSize()), false);
   }
 
+  /**
+   * Waits for at least one completion.
+   *
+   * @param timeout the maximum time to wait in milliseconds, or a negative
+   *                value to wait indefinitely
+   * @return the number of completions, which can be inspected with
+   *         {@link #eventTag(int)} and {@link #eventResult(int)} until the
+   *         next call to poll
+   */
   public int poll(long timeout) {
-    return getEvents(context, events, timeout);
+    int n = getEvents(context, 1, maxEvents, events.address(), timeout);
+    ChecksumStage stage = checksums;
+    if (stage != null) {
+      // verify while the data is still hot in this thread's cache
+      for (int i = 0; i < n; i++) {
+        long event = events.address() + (long) i * SIZE_IO_EVENT;
+        int slot = stage.slotOf(unsafe.getLong(event + OFFSETOF_EVENT_OBJ));
+        if (slot < 0) {
+          continue;
+        }
+        long res = eventResult(i);
+        long verified = stage.verify(slot, res);
+        if (verified != res) {
+          unsafe.putLong(event + OFFSETOF_EVENT_RES, verified);
+        }
+      }
+    }
+    return n;
   }
 
+  private synchronized ChecksumStage checksumStage() {
+    if (checksums == null) {
+      checksums = new ChecksumStage();
+    }
+    return checksums;
+  }
+
+  /**
+   * Returns the tag of the <code>i</code>th completion of the last poll.
+   */
+  public long eventTag(int i) {
+    return unsafe.getLong(events.address() + (long) i * SIZE_IO_EVENT + OFFSETOF_EVENT_DATA);
+  }
+
+  /**
+   * Returns the result of the <code>i</code>th completion of the last poll:
+   * the number of bytes transferred, or a negated errno.
+   */
+  public long eventResult(int i) {
+    return unsafe.getLong(events.address() + (long) i * SIZE_IO_EVENT + OFFSETOF_EVENT_RES);
+  }
 
   public void close() {
     destroy(context);
+    events.free();
+    if (iocbs != null) {
+      iocbs.free();
+    }
+    if (checksums != null) {
+      checksums.free();
+    }
   }
 
   public static int open(String fileName, int mode) throws FileNotFoundException {
@@ -174,8 +517,92 @@ public class AIO {
 
   public static native void close(int fd) throws IOException;
 
+  // The file operations below throw NativeIOException on failure.
+
+  /**
+   * <code>int fdatasync(int fd);</code>
+   */
+  public static native void fdatasync(int fd) throws IOException;
+
+  /**
+   * Allocates disk space for the given range, extending the file size if
+   * needed.
+   */
+  public static void fallocate(int fd, long offset, long len) throws IOException {
+    fallocate0(fd, 0, offset, len);
+  }
+
+  /**
+   * Manipulates the allocated disk space of a range, e.g. preallocates it
+   * without changing the file size ({@link #FALLOC_FL_KEEP_SIZE}) or
+   * deallocates it ({@link #FALLOC_FL_PUNCH_HOLE}, which must be combined
+   * with {@link #FALLOC_FL_KEEP_SIZE}).
+   * <code>int fallocate(int fd, int mode, off_t offset, off_t len);</code>
+   */
+  public static void fallocate(int fd, int mode, long offset, long len) throws IOException {
+    fallocate0(fd, mode, offset, len);
+  }
+
+  static native void fallocate0(int fd, int mode, long offset, long len) throws IOException;
+
+  /**
+   * <code>int posix_fadvise(int fd, off_t offset, off_t len, int advice);</code>
+   */
+  public static native void posixFadvise(int fd, long offset, long len, int advice)
+      throws IOException;
+
+  /**
+   * Populates the page cache with the given range.
+   * <code>ssize_t readahead(int fd, off64_t offset, size_t count);</code>
+   */
+  public static native void readahead(int fd, long offset, long count) throws IOException;
+
+  /**
+   * <code>int sync_file_range(int fd, off64_t offset, off64_t nbytes,
+   * unsigned int flags);</code>
+   */
+  public static native void syncFileRange(int fd, long offset, long nbytes, int flags)
+      throws IOException;
+
+  /**
+   * <code>int ftruncate(int fd, off_t length);</code>
+   */
+  public static native void ftruncate(int fd, long length) throws IOException;
+
+  /**
+   * Returns the size of the file, the <code>st_size</code> of
+   * <code>fstat</code>.
+   */
+  public static native long size(int fd) throws IOException;
+
+  /**
+   * Copies up to <code>len</code> bytes between two files inside the kernel.
+   * <code>ssize_t copy_file_range(int fd_in, loff_t *off_in, int fd_out,
+   * loff_t *off_out, size_t len, 0);</code>
+   *
+   * @return the number of bytes copied, 0 at the end of the source
+   */
+  public static native long copyFileRange(int fdIn, long offsetIn, int fdOut, long offsetOut,
+                                          long len) throws IOException;
+
+  /**
+   * Returns the alignment O_DIRECT requires for offsets, lengths and buffers
+   * of <code>fd</code>: the logical sector size of a block device, or the
+   * direct I/O alignment reported by <code>statx</code> for a regular file,
+   * falling back to its preferred I/O size.
+   */
+  public static native int logicalBlockSize(int fd) throws IOException;
+
   static native int sizeOfIocb();
 
+  static native int sizeOfIoEvent();
+
+  static native int ioEventDataOffset();
+
+  static native int ioEventResOffset();
+
+  static native int ioEventObjOffset();
+
   /**
    * Create an Asynchronous I/O context
    * <code>int io_setup(unsigned nr_events, aio_context_t *ctxp);</code>
@@ -184,11 +611,14 @@ public class AIO {
    */
   static native long setup();
 
-  static native void prepare(long iocb, int command, int fd, long offset, long buf, int len, int eventFd);
+  static native void prepare(long iocb, int command, int fd, long offset, long buf, int len, int eventFd, long data);
 
-  static native void submit0(long context, long nr, long iocbs);
+  /**
+   * @return the number of iocbs submitted, which may be less than nr
+   */
+  static native long submit0(long context, long nr, long iocbs) throws IOException;
 
-  static native int getEvents(long context, long[] events, long timeout);
+  static native int getEvents(long context, int minNr, int nr, long events, long timeout);
 
   static native void destroy(long context);
 
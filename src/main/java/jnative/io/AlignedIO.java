@@ -0,0 +1,499 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.AlignedBufferPool;
+import jnative.utils.AlignedBuffers;
+import jnative.utils.IntIntHashMap;
+import jnative.utils.JNativeUnsafe;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads and writes arbitrary byte ranges of files opened with
+ * <code>O_DIRECT</code>.
+ * <p>
+ * Reads are served by aligned reads covering the requested range into pooled
+ * aligned buffers, from which the requested bytes are copied out. Writes are
+ * staged, sorted and coalesced into block aligned runs; blocks of a run that
+ * the staged writes do not fully cover are read first (read-modify-write),
+ * then each run is written with a single aligned write. The logical block
+ * size is queried once per file descriptor.
+ * <p>
+ * Since the last block of a write that extends the file is written padded,
+ * the file is truncated back to its logical length afterwards. This class is
+ * not thread safe.
+ */
+public class AlignedIO {
+
+  /** Alignment of the pooled buffers; no supported block size exceeds it. */
+  static final int BUFFER_ALIGNMENT = 4096;
+  /** Maximum number of requests in one batched submission. */
+  static final int MAX_BATCH = 256;
+  /** Number of file descriptors whose block size is remembered. */
+  static final int MAX_CACHED_FDS = 1024;
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+
+  static class StagedWrite {
+    final int fd;
+    final long position;
+    final ByteBuffer data;
+    Run run;
+    // the rest of this write, when it was split between two runs
+    StagedWrite split;
+
+    StagedWrite(int fd, long position, ByteBuffer data) {
+      this.fd = fd;
+      this.position = position;
+      this.data = data;
+    }
+
+    long end() {
+      return position + data.remaining();
+    }
+
+    /**
+     * Cuts this write at <code>at</code>, returning the part from there on,
+     * which follows it in the {@link #split} chain.
+     */
+    StagedWrite slice(long at) {
+      ByteBuffer rest = data.duplicate();
+      rest.position(data.position() + (int) (at - position));
+      data.limit(rest.position());
+      StagedWrite next = new StagedWrite(fd, at, rest);
+      next.split = split;
+      split = next;
+      return next;
+    }
+  }
+
+  static class Run {
+    final int fd;
+    final int blockSize;
+    final long start;
+    long end;
+    // end of the written data, end of file if a read came short
+    long dataEnd;
+    long eof = -1;
+    final List<StagedWrite> writes = new ArrayList<StagedWrite>();
+    ByteBuffer buffer;
+
+    Run(int fd, int blockSize, long start, long end) {
+      this.fd = fd;
+      this.blockSize = blockSize;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private static final Comparator<StagedWrite> BY_FD_AND_POSITION =
+      new Comparator<StagedWrite>() {
+        @Override
+        public int compare(StagedWrite a, StagedWrite b) {
+          if (a.fd != b.fd) {
+            return a.fd < b.fd ? -1 : 1;
+          }
+          return a.position < b.position ? -1 : (a.position == b.position ? 0 : 1);
+        }
+      };
+
+  private final AIO aio;
+  private final AlignedBufferPool pool;
+  private final IntIntHashMap blockSizes;
+  private final List<StagedWrite> staged = new ArrayList<StagedWrite>();
+  private final long[] results = new long[MAX_BATCH];
+
+  /**
+   * @param bufferSize       the size of the pooled buffers and the largest
+   *                         single request, a multiple of 4096
+   * @param maxPooledBuffers the number of buffers kept for reuse
+   */
+  public AlignedIO(int bufferSize, int maxPooledBuffers) {
+    if (bufferSize <= 0 || bufferSize % BUFFER_ALIGNMENT != 0) {
+      throw new IllegalArgumentException("Buffer size must be a multiple of "
+          + BUFFER_ALIGNMENT + ": " + bufferSize);
+    }
+    this.aio = new AIO(MAX_BATCH);
+    this.pool = new AlignedBufferPool(bufferSize, BUFFER_ALIGNMENT, maxPooledBuffers);
+    this.blockSizes = new IntIntHashMap(MAX_CACHED_FDS, -1);
+  }
+
+  /**
+   * Returns the logical block size of <code>fd</code>, the alignment O_DIRECT
+   * requires for its offsets and lengths.
+   */
+  public int blockSize(int fd) throws IOException {
+    int size = blockSizes.get(fd);
+    if (size < 0) {
+      size = AIO.logicalBlockSize(fd);
+      if (size <= 0 || size > BUFFER_ALIGNMENT || pool.bufferSize() % size != 0) {
+        throw new IOException("Unsupported block size " + size + " for fd " + fd);
+      }
+      if (blockSizes.size() == blockSizes.maxSize()) {
+        blockSizes.clear();
+      }
+      blockSizes.put(fd, size);
+    }
+    return size;
+  }
+
+  /**
+   * Forgets the cached block size of <code>fd</code>, to be called when it is
+   * closed.
+   */
+  public void forget(int fd) {
+    blockSizes.remove(fd);
+  }
+
+  private static long floor(long offset, int blockSize) {
+    return offset - offset % blockSize;
+  }
+
+  private static long ceil(long offset, int blockSize) {
+    return floor(offset + blockSize - 1, blockSize);
+  }
+
+  /**
+   * Reads up to <code>dst.remaining()</code> bytes at <code>position</code>.
+   *
+   * @return the number of bytes read, or -1 if <code>position</code> is at or
+   *         past the end of the file
+   */
+  public int read(int fd, long position, ByteBuffer dst) throws IOException {
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+    int blockSize = blockSize(fd);
+    int bufferSize = pool.bufferSize();
+    long end = position + dst.remaining();
+    long alignedEnd = ceil(end, blockSize);
+    long start = floor(position, blockSize);
+    int total = 0;
+    ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH];
+
+    while (start < alignedEnd) {
+      int nr = 0;
+      try {
+        for (long off = start; off < alignedEnd && nr < MAX_BATCH; off += bufferSize, nr++) {
+          ByteBuffer buffer = pool.acquire();
+          buffer.limit((int) Math.min(bufferSize, alignedEnd - off));
+          buffers[nr] = buffer;
+          aio.prepareRead(fd, off, buffer, nr);
+        }
+        submitAndAwait(nr);
+
+        for (int i = 0; i < nr; i++, start += bufferSize) {
+          long len = Math.min(bufferSize, alignedEnd - start);
+          long res = results[i];
+          if (res < 0) {
+            throw new IOException("Read of fd " + fd + " at " + start
+                + " failed with errno " + -res);
+          }
+          int from = (int) (Math.max(position, start) - start);
+          int to = (int) (Math.min(end, start + res) - start);
+          if (to > from) {
+            ByteBuffer buffer = buffers[i];
+            buffer.limit(to).position(from);
+            dst.put(buffer);
+            total += to - from;
+          }
+          if (res < len) {
+            // end of file
+            return total == 0 ? -1 : total;
+          }
+        }
+      } finally {
+        for (int i = 0; i < nr; i++) {
+          pool.release(buffers[i]);
+          buffers[i] = null;
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Writes the remaining bytes of <code>src</code> at <code>position</code>,
+   * together with any previously staged writes.
+   */
+  public void write(int fd, long position, ByteBuffer src) throws IOException {
+    stageWrite(fd, position, src);
+    flushWrites();
+  }
+
+  /**
+   * Stages a write of the remaining bytes of <code>src</code> for the next
+   * {@link #flushWrites()}. The content of <code>src</code> must not change
+   * until then; its position is advanced to its limit. When staged writes
+   * overlap, the one staged last wins.
+   */
+  public void stageWrite(int fd, long position, ByteBuffer src) throws IOException {
+    int blockSize = blockSize(fd);
+    ByteBuffer data = src.duplicate();
+    long end = position + data.remaining();
+    // split so that no piece spans more blocks than fit in one buffer
+    for (long pos = position; pos < end; ) {
+      long pieceEnd = Math.min(end, floor(pos, blockSize) + pool.bufferSize());
+      ByteBuffer piece = data.duplicate();
+      piece.position(data.position() + (int) (pos - position));
+      piece.limit(piece.position() + (int) (pieceEnd - pos));
+      staged.add(new StagedWrite(fd, pos, piece));
+      pos = pieceEnd;
+    }
+    src.position(src.limit());
+  }
+
+  /**
+   * Writes out all staged writes.
+   */
+  public void flushWrites() throws IOException {
+    if (staged.isEmpty()) {
+      return;
+    }
+    try {
+      List<StagedWrite> sorted = new ArrayList<StagedWrite>(staged);
+      Collections.sort(sorted, BY_FD_AND_POSITION);
+      List<Run> runs = new ArrayList<Run>();
+      for (StagedWrite write : sorted) {
+        int blockSize = blockSize(write.fd);
+        write = addToEarlierRuns(runs, write);
+        if (write == null) {
+          continue;
+        }
+        long start = floor(write.position, blockSize);
+        long end = ceil(write.end(), blockSize);
+        Run last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if (last != null && last.fd == write.fd && start < last.end
+            && end - last.start > pool.bufferSize()) {
+          // runs must not share a block: the head of the write goes into the
+          // last run, the rest into a new one starting at its aligned end
+          StagedWrite rest = write.slice(last.end);
+          addToRun(last, write);
+          write = rest;
+          start = last.end;
+          last = null;
+        }
+        if (last == null || last.fd != write.fd || start > last.end
+            || Math.max(last.end, end) - last.start > pool.bufferSize()) {
+          last = new Run(write.fd, blockSize, start, end);
+          runs.add(last);
+        }
+        last.end = Math.max(last.end, end);
+        addToRun(last, write);
+      }
+      for (int i = 0; i < runs.size(); i += MAX_BATCH) {
+        flushRuns(runs.subList(i, Math.min(runs.size(), i + MAX_BATCH)));
+      }
+      // cut off the padding of the last run of each file if it hit the end
+      for (int i = 0; i < runs.size(); i++) {
+        Run run = runs.get(i);
+        boolean lastOfFile = i == runs.size() - 1 || runs.get(i + 1).fd != run.fd;
+        if (lastOfFile && run.eof >= 0) {
+          long length = Math.max(run.eof, run.dataEnd);
+          if (length < run.end) {
+            AIO.ftruncate(run.fd, length);
+          }
+        }
+      }
+    } finally {
+      staged.clear();
+    }
+  }
+
+  /**
+   * Hands the part of <code>write</code> before the start of the last run to
+   * the runs it falls in. Only a run opened by a split starts after the
+   * aligned position of a later write, and such a run directly follows the
+   * one it was split from.
+   *
+   * @return the part of the write left for the last run, or null
+   */
+  private static StagedWrite addToEarlierRuns(List<Run> runs, StagedWrite write) {
+    int last = runs.size() - 1;
+    if (last < 0 || runs.get(last).fd != write.fd
+        || write.position >= runs.get(last).start) {
+      return write;
+    }
+    int i = last;
+    while (runs.get(i).start > write.position) {
+      i--;
+    }
+    for (; i < last; i++) {
+      long boundary = runs.get(i + 1).start;
+      if (write.end() <= boundary) {
+        addToRun(runs.get(i), write);
+        return null;
+      }
+      StagedWrite rest = write.slice(boundary);
+      addToRun(runs.get(i), write);
+      write = rest;
+    }
+    return write;
+  }
+
+  private static void addToRun(Run run, StagedWrite write) {
+    run.dataEnd = Math.max(run.dataEnd, write.end());
+    run.writes.add(write);
+    write.run = run;
+  }
+
+  private void flushRuns(List<Run> runs) throws IOException {
+    try {
+      for (Run run : runs) {
+        run.buffer = pool.acquire();
+      }
+      readUncovered(runs);
+
+      // apply the writes in the order they were staged
+      for (StagedWrite original : staged) {
+        for (StagedWrite write = original; write != null; write = write.split) {
+          if (write.run != null && write.run.buffer != null) {
+            ByteBuffer target = write.run.buffer.duplicate();
+            target.clear().position((int) (write.position - write.run.start));
+            target.put(write.data.duplicate());
+          }
+        }
+      }
+
+      for (int i = 0; i < runs.size(); i++) {
+        Run run = runs.get(i);
+        run.buffer.clear().limit((int) (run.end - run.start));
+        aio.prepareWrite(run.fd, run.start, run.buffer, i);
+      }
+      submitAndAwait(runs.size());
+      for (int i = 0; i < runs.size(); i++) {
+        Run run = runs.get(i);
+        if (results[i] != run.end - run.start) {
+          throw new IOException("Write of fd " + run.fd + " at " + run.start
+              + " returned " + results[i] + " instead of " + (run.end - run.start));
+        }
+      }
+    } finally {
+      for (Run run : runs) {
+        if (run.buffer != null) {
+          pool.release(run.buffer);
+          run.buffer = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the blocks of each run that its writes do not cover completely,
+   * coalescing adjacent blocks into one read. Blocks past the end of the file
+   * are zeroed.
+   */
+  private void readUncovered(List<Run> runs) throws IOException {
+    List<Run> readRuns = new ArrayList<Run>();
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (Run run : runs) {
+      int blockSize = run.blockSize;
+      long covered = run.start;
+      for (StagedWrite write : run.writes) {
+        if (write.position > covered) {
+          addRange(run, readRuns, ranges, floor(covered, blockSize),
+              ceil(write.position, blockSize));
+        }
+        covered = Math.max(covered, write.end());
+      }
+      if (covered < run.end) {
+        addRange(run, readRuns, ranges, floor(covered, blockSize), run.end);
+      }
+    }
+    // a run may need a head and a tail read, so batch the ranges again
+    for (int from = 0; from < ranges.size(); from += MAX_BATCH) {
+      int nr = Math.min(MAX_BATCH, ranges.size() - from);
+      for (int i = 0; i < nr; i++) {
+        Run run = readRuns.get(from + i);
+        long[] range = ranges.get(from + i);
+        ByteBuffer target = run.buffer.duplicate();
+        target.clear().position((int) (range[0] - run.start));
+        target.limit((int) (range[1] - run.start));
+        aio.prepareRead(run.fd, range[0], target, i);
+      }
+      submitAndAwait(nr);
+      for (int i = 0; i < nr; i++) {
+        Run run = readRuns.get(from + i);
+        long[] range = ranges.get(from + i);
+        long res = results[i];
+        if (res < 0) {
+          throw new IOException("Read of fd " + run.fd + " at " + range[0]
+              + " failed with errno " + -res);
+        }
+        if (range[0] + res < range[1]) {
+          run.eof = Math.max(run.eof, range[0] + res);
+          unsafe.setMemory(AlignedBuffers.address(run.buffer) + (range[0] + res - run.start),
+              range[1] - range[0] - res, (byte) 0);
+        }
+      }
+    }
+  }
+
+  private static void addRange(Run run, List<Run> readRuns, List<long[]> ranges,
+                               long start, long end) {
+    int last = ranges.size() - 1;
+    if (last >= 0 && readRuns.get(last) == run && ranges.get(last)[1] >= start) {
+      ranges.get(last)[1] = Math.max(ranges.get(last)[1], end);
+    } else {
+      readRuns.add(run);
+      ranges.add(new long[] {start, end});
+    }
+  }
+
+  /**
+   * Submits the queued requests and reaps their completions into
+   * {@link #results}. If the submission fails, the requests already accepted
+   * are still reaped, since their buffers go back to the pool afterwards.
+   */
+  private void submitAndAwait(int nr) throws IOException {
+    try {
+      aio.submit();
+    } catch (IOException e) {
+      await(aio.accepted());
+      throw e;
+    }
+    await(nr);
+  }
+
+  private void await(int nr) {
+    while (nr > 0) {
+      int n = aio.poll(-1);
+      for (int i = 0; i < n; i++) {
+        results[(int) aio.eventTag(i)] = aio.eventResult(i);
+      }
+      nr -= n;
+    }
+  }
+
+  /**
+   * Drops any staged writes and releases the AIO context.
+   */
+  public void close() {
+    staged.clear();
+    aio.close();
+    blockSizes.free();
+  }
+}
@@ -0,0 +1,629 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.JNativeUnsafe;
+import jnative.utils.LongLongHashMap;
+import jnative.utils.NativeObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A user-space cache of file blocks for files read with <code>O_DIRECT</code>.
+ * <p>
+ * Blocks are identified by a caller assigned file id and a block number and
+ * stored in frames carved out of one native memory region, so the cached data
+ * is invisible to the garbage collector and its footprint is exact. The cache
+ * is split into independently locked segments by key hash.
+ * <p>
+ * Each segment evicts in the manner of 2Q: a block enters a probation FIFO
+ * and is only moved to the protected queue, which is managed by CLOCK, when
+ * it is referenced again while on probation, or when it misses again shortly
+ * after being evicted from probation (it is remembered in a ghost list). A
+ * large scan therefore only churns the probation queue.
+ * <p>
+ * Concurrent misses on the same block wait for a single {@link AIO} read,
+ * reaped by a dedicated thread. This class is thread safe.
+ */
+public class BlockCache {
+
+  private static final Log LOG = LogFactory.getLog(BlockCache.class.getName());
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+  private static final long BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+
+  /** Share of the frames of a segment the probation queue may keep. */
+  static final double PROBATION_SHARE = 0.25;
+  /** Number of ghost entries per frame. */
+  static final double GHOST_SHARE = 0.5;
+  /** How long the reaper waits for completions before checking for close. */
+  static final long REAP_TIMEOUT_MILLIS = 100;
+
+  static final int FILE_ID_BITS = 23;
+  static final int BLOCK_NUMBER_BITS = 40;
+
+  private final int blockSize;
+  private final NativeObject region;
+  private final Segment[] segments;
+  private final int segmentShift;
+
+  private final AIO aio;
+  private final ReentrantLock submitLock = new ReentrantLock();
+  private final Thread reaper;
+  private volatile boolean closed;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong sharedMisses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param capacity    the cache size in bytes
+   * @param blockSize   the size of a block, a multiple of the logical block
+   *                    size of the cached files
+   * @param segments    the number of independently locked segments, a power
+   *                    of two
+   */
+  public BlockCache(long capacity, int blockSize, int segments) {
+    if (segments <= 0 || (segments & (segments - 1)) != 0) {
+      throw new IllegalArgumentException("Segments must be a power of two: " + segments);
+    }
+    int framesPerSegment = (int) (capacity / blockSize / segments);
+    if (framesPerSegment < 2) {
+      throw new IllegalArgumentException("Capacity " + capacity + " is too small for "
+          + segments + " segments of " + blockSize + " byte blocks");
+    }
+    this.blockSize = blockSize;
+    this.region = new NativeObject((long) framesPerSegment * segments * blockSize, true);
+    this.segments = new Segment[segments];
+    for (int i = 0; i < segments; i++) {
+      this.segments[i] = new Segment(i * framesPerSegment, framesPerSegment);
+    }
+    this.segmentShift = 64 - Integer.numberOfTrailingZeros(segments);
+    this.aio = new AIO(Math.min(framesPerSegment * segments, 1024));
+
+    this.reaper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        reap();
+      }
+    }, "BlockCache reaper");
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  static long key(int fileId, long blockNumber) {
+    if (fileId < 0 || fileId >= (1 << FILE_ID_BITS)
+        || blockNumber < 0 || blockNumber >= (1L << BLOCK_NUMBER_BITS)) {
+      throw new IllegalArgumentException("Block " + fileId + ":" + blockNumber
+          + " is out of range");
+    }
+    return ((long) fileId << BLOCK_NUMBER_BITS) | blockNumber;
+  }
+
+  Segment segmentFor(long key) {
+    if (segments.length == 1) {
+      return segments[0];
+    }
+    return segments[(int) ((key * 0x9E3779B97F4A7C15L) >>> segmentShift)];
+  }
+
+  private Segment segmentOfFrame(int frame) {
+    return segments[frame / segments[0].frames];
+  }
+
+  private long frameAddress(int frame) {
+    return region.address() + (long) frame * blockSize;
+  }
+
+  /**
+   * Copies block <code>blockNumber</code> of the file into <code>dst</code>,
+   * reading it from <code>fd</code> on a miss.
+   *
+   * @param fd          the file, possibly opened with O_DIRECT
+   * @param fileId      the id of the file in the cache
+   * @param blockNumber the block, at offset <code>blockNumber * blockSize</code>
+   * @param dst         receives up to one block
+   * @return the number of valid bytes in the block, less than the block size
+   *         at the end of the file
+   */
+  public int read(int fd, int fileId, long blockNumber, ByteBuffer dst)
+      throws IOException, InterruptedException {
+    long key = key(fileId, blockNumber);
+    Segment segment = segmentFor(key);
+    int frame = segment.acquire(key);
+    try {
+      if (frame < 0) {
+        frame = ~frame;
+        load(segment, frame, fd, blockNumber);
+      }
+      int length = segment.lengths[frame - segment.base];
+      copy(frameAddress(frame), dst, Math.min(length, dst.remaining()));
+      return length;
+    } finally {
+      segment.unpin(frame);
+    }
+  }
+
+  private void load(Segment segment, int frame, int fd, long blockNumber)
+      throws IOException {
+    boolean submitted = false;
+    try {
+      submitLock.lock();
+      try {
+        checkOpen();
+        aio.prepareRead(fd, blockNumber * blockSize, frameAddress(frame), blockSize, frame);
+        aio.submit();
+        submitted = true;
+      } finally {
+        submitLock.unlock();
+      }
+      long res = segment.awaitRead(frame);
+      if (res < 0) {
+        throw new IOException("Read of block " + blockNumber + " from fd " + fd
+            + " failed with errno " + -res);
+      }
+      segment.loaded(frame, (int) res);
+    } catch (Throwable t) {
+      segment.failed(frame, submitted);
+      throw t;
+    }
+  }
+
+  private void copy(long src, ByteBuffer dst, int length) {
+    if (dst instanceof DirectBuffer) {
+      unsafe.copyMemory(null, src, null,
+          ((DirectBuffer) dst).address() + dst.position(), length);
+    } else {
+      unsafe.copyMemory(null, src, dst.array(),
+          BYTE_ARRAY_OFFSET + dst.arrayOffset() + dst.position(), length);
+    }
+    dst.position(dst.position() + length);
+  }
+
+  /**
+   * Drops a block from the cache, e.g. after it was overwritten. A read of
+   * the block in flight is not cached; reads starting afterwards load the
+   * block again.
+   */
+  public void invalidate(int fileId, long blockNumber) {
+    long key = key(fileId, blockNumber);
+    segmentFor(key).invalidate(key);
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Block cache is closed");
+    }
+  }
+
+  private void reap() {
+    while (!closed) {
+      int n;
+      try {
+        n = aio.poll(REAP_TIMEOUT_MILLIS);
+      } catch (Throwable t) {
+        LOG.error("Reaping block reads failed", t);
+        return;
+      }
+      for (int i = 0; i < n; i++) {
+        int frame = (int) aio.eventTag(i);
+        segmentOfFrame(frame).readDone(frame, aio.eventResult(i));
+      }
+    }
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of reads that missed, including those that waited for
+   * another thread's read of the same block.
+   */
+  public long misses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of misses that were served by another thread's read.
+   */
+  public long sharedMisses() {
+    return sharedMisses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  public int blockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Stops the reaper and frees the cache memory. No read may be in progress.
+   */
+  public void close() throws InterruptedException {
+    closed = true;
+    reaper.join();
+    submitLock.lock();
+    try {
+      aio.close();
+    } finally {
+      submitLock.unlock();
+    }
+    for (Segment segment : segments) {
+      segment.free();
+    }
+    region.free();
+  }
+
+  private static final byte FREE = 0;
+  private static final byte LOADING = 1;
+  private static final byte PROBATION = 2;
+  private static final byte PROTECTED = 3;
+
+  /**
+   * A lock-protected share of the frames with its own index and queues.
+   * Frames are numbered globally; the arrays are indexed by
+   * <code>frame - base</code>.
+   */
+  class Segment {
+    final int base;
+    final int frames;
+    final int probationTarget;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition changed = lock.newCondition();
+
+    final LongLongHashMap index;
+    final LongLongHashMap ghosts;
+    final long[] ghostQueue;
+    int ghostHead;
+    long ghostSeq;
+
+    final long[] keys;
+    final byte[] states;
+    final boolean[] referenced;
+    final boolean[] hot;
+    // invalidated while loading, to be dropped once the read is done
+    final boolean[] stale;
+    final int[] pins;
+    final int[] lengths;
+    final boolean[] readDone;
+    final long[] readResults;
+
+    // intrusive doubly linked queues; the two extra nodes are their heads
+    final int[] prev;
+    final int[] next;
+    final int probationHead;
+    final int protectedHead;
+    int probationSize;
+
+    final int[] freeFrames;
+    int freeCount;
+
+    Segment(int base, int frames) {
+      this.base = base;
+      this.frames = frames;
+      this.probationTarget = Math.max(1, (int) (frames * PROBATION_SHARE));
+      this.index = new LongLongHashMap(frames, -1);
+      int ghostCapacity = Math.max(1, (int) (frames * GHOST_SHARE));
+      this.ghosts = new LongLongHashMap(ghostCapacity, -1);
+      this.ghostQueue = new long[ghostCapacity];
+      this.keys = new long[frames];
+      this.states = new byte[frames];
+      this.referenced = new boolean[frames];
+      this.hot = new boolean[frames];
+      this.stale = new boolean[frames];
+      this.pins = new int[frames];
+      this.lengths = new int[frames];
+      this.readDone = new boolean[frames];
+      this.readResults = new long[frames];
+      this.prev = new int[frames + 2];
+      this.next = new int[frames + 2];
+      this.probationHead = frames;
+      this.protectedHead = frames + 1;
+      prev[probationHead] = next[probationHead] = probationHead;
+      prev[protectedHead] = next[protectedHead] = protectedHead;
+      this.freeFrames = new int[frames];
+      for (int i = 0; i < frames; i++) {
+        freeFrames[i] = frames - 1 - i;
+      }
+      this.freeCount = frames;
+    }
+
+    /**
+     * Pins the frame for <code>key</code>. Returns the frame if the block is
+     * cached, or the complement of a newly reserved frame that the caller
+     * must load.
+     */
+    int acquire(long key) throws InterruptedException {
+      boolean waited = false;
+      lock.lockInterruptibly();
+      try {
+        while (true) {
+          int local = (int) index.get(key);
+          if (local >= 0) {
+            if (states[local] == LOADING) {
+              if (!waited) {
+                misses.incrementAndGet();
+                sharedMisses.incrementAndGet();
+                waited = true;
+              }
+              changed.await();
+              continue;
+            }
+            if (!waited) {
+              hits.incrementAndGet();
+            }
+            referenced[local] = true;
+            pins[local]++;
+            return base + local;
+          }
+          local = reserve();
+          if (local < 0) {
+            // every frame is pinned or loading
+            changed.await();
+            continue;
+          }
+          if (!waited) {
+            misses.incrementAndGet();
+          } else {
+            sharedMisses.decrementAndGet();
+          }
+          keys[local] = key;
+          states[local] = LOADING;
+          referenced[local] = false;
+          hot[local] = ghosts.remove(key) >= 0;
+          stale[local] = false;
+          pins[local] = 1;
+          readDone[local] = false;
+          index.put(key, local);
+          return ~(base + local);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private int reserve() {
+      if (freeCount > 0) {
+        return freeFrames[--freeCount];
+      }
+      int victim = -1;
+      if (probationSize > probationTarget) {
+        victim = evictProbation();
+      }
+      if (victim < 0) {
+        victim = evictProtected();
+      }
+      if (victim < 0) {
+        victim = evictProbation();
+      }
+      if (victim >= 0) {
+        unlink(victim);
+        index.remove(keys[victim]);
+        evictions.incrementAndGet();
+      }
+      return victim;
+    }
+
+    /**
+     * Walks the probation queue from its oldest entry. Referenced frames are
+     * promoted to the protected queue; the first unreferenced, unpinned frame
+     * is the victim and is remembered as a ghost.
+     */
+    private int evictProbation() {
+      int f = next[probationHead];
+      while (f != probationHead) {
+        int following = next[f];
+        if (pins[f] == 0) {
+          if (referenced[f]) {
+            referenced[f] = false;
+            unlink(f);
+            linkTail(protectedHead, f);
+            states[f] = PROTECTED;
+          } else {
+            addGhost(keys[f]);
+            return f;
+          }
+        }
+        f = following;
+      }
+      return -1;
+    }
+
+    /**
+     * Runs the CLOCK hand over the protected queue, giving referenced frames
+     * a second chance.
+     */
+    private int evictProtected() {
+      for (int scanned = 0; scanned < 2 * frames; scanned++) {
+        int f = next[protectedHead];
+        if (f == protectedHead) {
+          return -1;
+        }
+        if (pins[f] == 0 && !referenced[f]) {
+          return f;
+        }
+        referenced[f] = false;
+        unlink(f);
+        linkTail(protectedHead, f);
+      }
+      return -1;
+    }
+
+    private void addGhost(long key) {
+      int slot = (int) (ghostSeq % ghostQueue.length);
+      if (ghostSeq >= ghostQueue.length) {
+        long oldest = ghostQueue[slot];
+        if (ghosts.get(oldest) == ghostSeq - ghostQueue.length) {
+          ghosts.remove(oldest);
+        }
+      }
+      ghosts.put(key, ghostSeq);
+      ghostQueue[slot] = key;
+      ghostSeq++;
+    }
+
+    private void linkTail(int head, int f) {
+      int last = prev[head];
+      next[last] = f;
+      prev[f] = last;
+      next[f] = head;
+      prev[head] = f;
+      if (head == probationHead) {
+        probationSize++;
+      }
+    }
+
+    private void unlink(int f) {
+      if (states[f] == PROBATION) {
+        probationSize--;
+      }
+      next[prev[f]] = next[f];
+      prev[next[f]] = prev[f];
+    }
+
+    void readDone(int frame, long result) {
+      lock.lock();
+      try {
+        readResults[frame - base] = result;
+        readDone[frame - base] = true;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    long awaitRead(int frame) {
+      int local = frame - base;
+      lock.lock();
+      try {
+        while (!readDone[local]) {
+          // the kernel still owns the frame, so this wait cannot be abandoned
+          changed.awaitUninterruptibly();
+        }
+        return readResults[local];
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void loaded(int frame, int length) {
+      int local = frame - base;
+      lock.lock();
+      try {
+        lengths[local] = length;
+        if (stale[local]) {
+          // only the loading reader sees this data; unpin() frees the frame
+          states[local] = FREE;
+        } else {
+          states[local] = hot[local] ? PROTECTED : PROBATION;
+          linkTail(hot[local] ? protectedHead : probationHead, local);
+        }
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void failed(int frame, boolean submitted) {
+      int local = frame - base;
+      if (submitted) {
+        // make sure the kernel is done with the frame before reusing it
+        lock.lock();
+        try {
+          while (!readDone[local] && !closed) {
+            changed.awaitUninterruptibly();
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+      lock.lock();
+      try {
+        if (states[local] == LOADING) {
+          if (!stale[local]) {
+            index.remove(keys[local]);
+          }
+          states[local] = FREE;
+          // the caller's pin is dropped by unpin()
+        }
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void unpin(int frame) {
+      int local = frame - base;
+      lock.lock();
+      try {
+        if (--pins[local] == 0) {
+          if (states[local] == FREE) {
+            freeFrames[freeCount++] = local;
+          }
+          changed.signalAll();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void invalidate(long key) {
+      lock.lock();
+      try {
+        int local = (int) index.get(key);
+        if (local < 0) {
+          return;
+        }
+        index.remove(key);
+        if (states[local] == LOADING) {
+          // the read may predate the change; later readers load the block
+          // anew, and threads waiting for this read retry
+          stale[local] = true;
+          changed.signalAll();
+          return;
+        }
+        unlink(local);
+        states[local] = FREE;
+        if (pins[local] == 0) {
+          freeFrames[freeCount++] = local;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void free() {
+      index.free();
+      ghosts.free();
+    }
+  }
+}
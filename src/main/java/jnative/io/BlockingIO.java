@@ -0,0 +1,570 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.IntObjectSlotTable;
+import jnative.utils.JNativeUnsafe;
+import jnative.utils.NativeObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking reads and writes of files and sockets for code running on
+ * lightweight (virtual) threads.
+ * <p>
+ * A caller never waits inside native code: file requests are submitted to
+ * {@link AIO} and socket operations are attempted without blocking, after
+ * which the caller parks with {@link LockSupport}. A single platform thread
+ * waits in <code>epoll_wait</code> on the sockets of all parked callers and on
+ * the eventfd signalled by AIO completions, and unparks the callers whose
+ * operations can proceed. Parking only costs the waiter a small object, so
+ * the number of concurrent waits is bounded by <code>maxWaiters</code>
+ * rather than by threads; AIO requests in flight are further bounded by the
+ * depth of the AIO context.
+ * <p>
+ * Files must be opened with <code>O_DIRECT</code>: for other files the
+ * kernel performs the I/O synchronously inside <code>io_submit</code>, which
+ * would block the caller's carrier thread. Sockets must be non-blocking, see
+ * {@link #configure(int)}. At most one reader and one writer may wait on a
+ * socket at a time. This class is thread safe.
+ */
+public class BlockingIO {
+
+  private static final Log LOG = LogFactory.getLog(BlockingIO.class.getName());
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+
+  /** The number of requests the AIO context accepts, see AIO.setup. */
+  private static final int MAX_AIO_IN_FLIGHT = 8192;
+
+  private static final int MAX_EVENTS = 1024;
+
+  private static final int READ_EVENTS = EPoll.EPOLLIN | EPoll.EPOLLRDHUP
+      | EPoll.EPOLLERR | EPoll.EPOLLHUP;
+  private static final int WRITE_EVENTS = EPoll.EPOLLOUT | EPoll.EPOLLERR | EPoll.EPOLLHUP;
+
+  /**
+   * A caller parked on an AIO request.
+   */
+  static final class FileWaiter {
+    final Thread thread;
+    volatile boolean done;
+    long result;
+
+    FileWaiter(Thread thread) {
+      this.thread = thread;
+    }
+  }
+
+  /**
+   * The callers parked on a socket. Both fields are changed under the lock;
+   * a parked caller is done once its field no longer holds it.
+   */
+  static final class SocketWaiters {
+    volatile Thread reader;
+    volatile Thread writer;
+    boolean added;
+  }
+
+  private final int epfd;
+  private final int eventFd;
+  private final AIO aio;
+  private final Semaphore aioPermits;
+  private final NativeObject events;
+
+  // guards the tables and epoll registration
+  private final ReentrantLock lock = new ReentrantLock();
+  // guards AIO submission, kept apart so the poller never waits on io_submit
+  private final ReentrantLock submitLock = new ReentrantLock();
+  private final IntObjectSlotTable<FileWaiter> files;
+  private final IntObjectSlotTable<SocketWaiters> sockets;
+  private int nextRequestId;
+  private volatile boolean closed;
+  // set by close(), while closed is also set when the poller fails
+  private boolean released;
+  // set once the poller stops, after which the eventfd may be closed
+  private boolean pollerStopped;
+
+  private final Thread poller;
+
+  /**
+   * @param maxWaiters the maximum number of sockets with parked callers, and
+   *                   of file requests in flight
+   */
+  public BlockingIO(int maxWaiters) throws IOException {
+    this.epfd = EPoll.epollCreate();
+    this.eventFd = EPoll.eventFd();
+    int rc = EPoll.epollCtl(epfd, EPoll.EPOLL_CTL_ADD, eventFd, EPoll.EPOLLIN);
+    if (rc != 0) {
+      AIO.close(eventFd);
+      AIO.close(epfd);
+      throw new NativeIOException("Cannot watch eventfd", rc);
+    }
+    int fileWaiters = Math.min(maxWaiters, MAX_AIO_IN_FLIGHT);
+    this.aio = new AIO(Math.min(fileWaiters, MAX_EVENTS));
+    aio.register(eventFd);
+    this.aioPermits = new Semaphore(fileWaiters);
+    this.events = new NativeObject((long) MAX_EVENTS * EPoll.SIZEOF_EPOLLEVENT, false);
+    this.files = new IntObjectSlotTable<FileWaiter>(fileWaiters);
+    this.sockets = new IntObjectSlotTable<SocketWaiters>(maxWaiters);
+
+    this.poller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runPoller();
+      }
+    }, "BlockingIO poller");
+    poller.setDaemon(true);
+    poller.start();
+  }
+
+  /**
+   * Makes a socket non-blocking, as required by {@link #read(int, ByteBuffer)}
+   * and {@link #write(int, ByteBuffer)}.
+   */
+  public static void configure(int fd) throws IOException {
+    EPoll.setNonBlocking(fd, true);
+  }
+
+  // -- Files --
+
+  /**
+   * Reads into the remaining bytes of <code>dst</code>, a direct buffer,
+   * from <code>position</code> of a file opened with <code>O_DIRECT</code>,
+   * with the alignment it requires.
+   *
+   * @return the number of bytes read, less than requested at end of file
+   */
+  public int read(int fd, long position, ByteBuffer dst) throws IOException {
+    return fileRequest(false, fd, position, dst);
+  }
+
+  /**
+   * Writes the remaining bytes of <code>src</code>, a direct buffer, at
+   * <code>position</code> of a file opened with <code>O_DIRECT</code>.
+   *
+   * @return the number of bytes written
+   */
+  public int write(int fd, long position, ByteBuffer src) throws IOException {
+    return fileRequest(true, fd, position, src);
+  }
+
+  private int fileRequest(boolean write, int fd, long position, ByteBuffer buffer)
+      throws IOException {
+    if (!(buffer instanceof DirectBuffer)) {
+      throw new IllegalArgumentException("Not a direct buffer");
+    }
+    if ((EPoll.getFlags(fd) & AIO.O_DIRECT) == 0) {
+      throw new IllegalArgumentException("fd " + fd + " is not opened with O_DIRECT");
+    }
+    // parks rather than pins when the AIO context is full
+    aioPermits.acquireUninterruptibly();
+    FileWaiter waiter = new FileWaiter(Thread.currentThread());
+    int id;
+    int slot;
+    lock.lock();
+    try {
+      ensureOpen();
+      id = nextRequestId;
+      nextRequestId = (nextRequestId + 1) & Integer.MAX_VALUE;
+      slot = files.put(id, waiter);
+    } catch (Throwable t) {
+      releasePermit();
+      throw t;
+    } finally {
+      lock.unlock();
+    }
+    // the waiter is registered first, the request may complete before
+    // io_submit returns
+    submitLock.lock();
+    try {
+      if (write) {
+        aio.prepareWrite(fd, position, buffer, slot);
+      } else {
+        aio.prepareRead(fd, position, buffer, slot);
+      }
+      aio.submit();
+    } catch (Throwable t) {
+      lock.lock();
+      try {
+        files.remove(id);
+        releasePermit();
+      } finally {
+        lock.unlock();
+      }
+      throw t;
+    } finally {
+      submitLock.unlock();
+    }
+
+    // the kernel owns the buffer until the request completes, so an
+    // interrupt cannot cut the wait short
+    boolean interrupted = false;
+    while (!waiter.done) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    long result = waiter.result;
+    if (result < 0) {
+      throw new NativeIOException((write ? "Write" : "Read") + " of fd " + fd + " at "
+          + position + " failed", (int) -result);
+    }
+    buffer.position(buffer.position() + (int) result);
+    return (int) result;
+  }
+
+  /**
+   * Returns the permit of a request that never reached the kernel. After
+   * close the poller waits for all permits, so it is woken to notice. Called
+   * with the lock held, under which the poller decides to stop.
+   */
+  private void releasePermit() throws IOException {
+    aioPermits.release();
+    if (closed && !pollerStopped) {
+      EPoll.eventFdWrite(eventFd, 1);
+    }
+  }
+
+  // -- Sockets --
+
+  /**
+   * Reads into the remaining bytes of <code>dst</code>, parking until some
+   * data is available.
+   *
+   * @return the number of bytes read, or -1 at end of stream
+   */
+  public int read(int fd, ByteBuffer dst) throws IOException {
+    ByteBuffer buffer = dst instanceof DirectBuffer ? dst
+        : ByteBuffer.allocateDirect(dst.remaining());
+    long address = ((DirectBuffer) buffer).address() + buffer.position();
+    int n;
+    while ((n = EPoll.read(fd, address, buffer.remaining())) == EPoll.UNAVAILABLE) {
+      await(fd, true);
+    }
+    if (n > 0) {
+      if (buffer != dst) {
+        buffer.limit(n);
+        dst.put(buffer);
+      } else {
+        dst.position(dst.position() + n);
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Writes all the remaining bytes of <code>src</code>, parking whenever the
+   * socket buffer is full.
+   *
+   * @return the number of bytes written
+   */
+  public int write(int fd, ByteBuffer src) throws IOException {
+    ByteBuffer buffer = src;
+    if (!(src instanceof DirectBuffer)) {
+      buffer = ByteBuffer.allocateDirect(src.remaining());
+      buffer.put(src.duplicate());
+      buffer.flip();
+    }
+    long address = ((DirectBuffer) buffer).address() + buffer.position();
+    int length = buffer.remaining();
+    int written = 0;
+    while (written < length) {
+      int n = EPoll.write(fd, address + written, length - written);
+      if (n == EPoll.UNAVAILABLE) {
+        await(fd, false);
+      } else {
+        written += n;
+      }
+    }
+    src.position(src.position() + written);
+    return written;
+  }
+
+  /**
+   * Drops the state kept for a socket. Must be called before the socket is
+   * closed, with no caller parked on it.
+   */
+  public void forget(int fd) {
+    lock.lock();
+    try {
+      if (sockets.remove(fd) != null) {
+        EPoll.epollCtl(epfd, EPoll.EPOLL_CTL_DEL, fd, 0);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void await(int fd, boolean read) throws IOException {
+    Thread self = Thread.currentThread();
+    SocketWaiters waiters;
+    lock.lock();
+    try {
+      ensureOpen();
+      waiters = sockets.get(fd);
+      if (waiters == null) {
+        waiters = new SocketWaiters();
+        sockets.put(fd, waiters);
+      }
+      if ((read ? waiters.reader : waiters.writer) != null) {
+        throw new IllegalStateException("Another thread is already "
+            + (read ? "reading from" : "writing to") + " fd " + fd);
+      }
+      if (read) {
+        waiters.reader = self;
+      } else {
+        waiters.writer = self;
+      }
+      int rc = arm(fd, waiters);
+      if (rc != 0) {
+        if (read) {
+          waiters.reader = null;
+        } else {
+          waiters.writer = null;
+        }
+        throw new NativeIOException("Cannot watch fd " + fd, rc);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    while ((read ? waiters.reader : waiters.writer) == self) {
+      LockSupport.park(this);
+      if (Thread.interrupted() || closed) {
+        lock.lock();
+        try {
+          if (read && waiters.reader == self) {
+            waiters.reader = null;
+          } else if (!read && waiters.writer == self) {
+            waiters.writer = null;
+          } else {
+            break;
+          }
+        } finally {
+          lock.unlock();
+        }
+        if (closed) {
+          throw new IOException("BlockingIO closed");
+        }
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting on fd " + fd);
+      }
+    }
+  }
+
+  /**
+   * (Re)arms the one-shot registration of <code>fd</code> for the events its
+   * parked callers wait for. Called with the lock held.
+   *
+   * @return 0 or an errno
+   */
+  private int arm(int fd, SocketWaiters waiters) {
+    int interest = (waiters.reader != null ? READ_EVENTS : 0)
+        | (waiters.writer != null ? WRITE_EVENTS : 0);
+    if (interest == 0) {
+      return 0;
+    }
+    interest |= EPoll.EPOLLONESHOT;
+    int rc;
+    if (waiters.added) {
+      rc = EPoll.epollCtl(epfd, EPoll.EPOLL_CTL_MOD, fd, interest);
+      if (rc == Errno.ENOENT.value()) {
+        // the fd was closed and reused without forget()
+        rc = EPoll.epollCtl(epfd, EPoll.EPOLL_CTL_ADD, fd, interest);
+      }
+    } else {
+      rc = EPoll.epollCtl(epfd, EPoll.EPOLL_CTL_ADD, fd, interest);
+      if (rc == Errno.EEXIST.value()) {
+        rc = EPoll.epollCtl(epfd, EPoll.EPOLL_CTL_MOD, fd, interest);
+      }
+    }
+    if (rc == 0) {
+      waiters.added = true;
+    }
+    return rc;
+  }
+
+  // -- Poller --
+
+  private void runPoller() {
+    try {
+      // keep reaping after close until the kernel has released every buffer
+      while (!isDrained()) {
+        int n = EPoll.epollWait(epfd, events.address(), MAX_EVENTS, -1);
+        for (int i = 0; i < n; i++) {
+          long event = events.address() + (long) i * EPoll.SIZEOF_EPOLLEVENT;
+          int fd = unsafe.getInt(event + EPoll.OFFSETOF_FD);
+          int ready = unsafe.getInt(event + EPoll.OFFSETOF_EVENTS);
+          if (fd == eventFd) {
+            EPoll.eventFdRead(eventFd);
+            reapFiles();
+          } else {
+            wakeSocket(fd, ready);
+          }
+        }
+      }
+    } catch (Throwable t) {
+      LOG.error("BlockingIO poller failed", t);
+      failAllFiles();
+    } finally {
+      wakeAllSockets();
+    }
+  }
+
+  private boolean isDrained() {
+    lock.lock();
+    try {
+      pollerStopped = closed && aioPermits.availablePermits() == files.maxSize();
+      return pollerStopped;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Closes this instance and fails the callers parked on file requests,
+   * since no one is left to reap their completions. Their buffers may still
+   * be owned by the kernel until {@link #close()} destroys the AIO context.
+   */
+  private void failAllFiles() {
+    lock.lock();
+    try {
+      closed = true;
+      pollerStopped = true;
+      for (int slot = 0; slot < files.maxSize(); slot++) {
+        FileWaiter waiter = files.getSlot(slot);
+        if (waiter != null) {
+          files.remove(files.keyAt(slot));
+          waiter.result = -Errno.EIO.value();
+          waiter.done = true;
+          LockSupport.unpark(waiter.thread);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void reapFiles() {
+    int n;
+    while ((n = aio.poll(0)) > 0) {
+      lock.lock();
+      try {
+        for (int i = 0; i < n; i++) {
+          int slot = (int) aio.eventTag(i);
+          FileWaiter waiter = files.remove(files.keyAt(slot));
+          waiter.result = aio.eventResult(i);
+          waiter.done = true;
+          LockSupport.unpark(waiter.thread);
+        }
+      } finally {
+        lock.unlock();
+      }
+      aioPermits.release(n);
+    }
+  }
+
+  private void wakeSocket(int fd, int ready) {
+    lock.lock();
+    try {
+      SocketWaiters waiters = sockets.get(fd);
+      if (waiters == null) {
+        return;
+      }
+      Thread reader = waiters.reader;
+      if (reader != null && (ready & READ_EVENTS) != 0) {
+        waiters.reader = null;
+        LockSupport.unpark(reader);
+      }
+      Thread writer = waiters.writer;
+      if (writer != null && (ready & WRITE_EVENTS) != 0) {
+        waiters.writer = null;
+        LockSupport.unpark(writer);
+      }
+      // the one-shot registration is disarmed now
+      int rc = arm(fd, waiters);
+      if (rc != 0) {
+        LOG.warn("Cannot rearm fd " + fd + ", errno " + rc);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void wakeAllSockets() {
+    lock.lock();
+    try {
+      for (int slot = 0; slot < sockets.maxSize(); slot++) {
+        SocketWaiters waiters = sockets.getSlot(slot);
+        if (waiters != null) {
+          LockSupport.unpark(waiters.reader);
+          LockSupport.unpark(waiters.writer);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("BlockingIO closed");
+    }
+  }
+
+  /**
+   * Fails the callers parked on sockets, waits for file requests in flight
+   * and releases all resources.
+   */
+  public void close() throws IOException, InterruptedException {
+    lock.lock();
+    try {
+      if (released) {
+        return;
+      }
+      released = true;
+      closed = true;
+    } finally {
+      lock.unlock();
+    }
+    EPoll.eventFdWrite(eventFd, 1);
+    poller.join();
+
+    aio.close();
+    events.free();
+    files.free();
+    sockets.free();
+    AIO.close(eventFd);
+    AIO.close(epfd);
+  }
+}
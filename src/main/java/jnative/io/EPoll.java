@@ -17,21 +17,44 @@
  */
 package jnative.io;
 
+import jnative.JNativeCodeLoader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import java.io.IOException;
 
+/**
+ * Thin wrappers over epoll, eventfd and non-blocking reads and writes.
+ * <p>
+ * Events are read straight out of a native <code>struct epoll_event</code>
+ * array, at {@link #SIZEOF_EPOLLEVENT} byte strides; the fd given to
+ * {@link #epollCtl} is stored in the event's data field.
+ */
 public class EPoll {
+
+  private static final Log LOG = LogFactory.getLog(EPoll.class.getName());
+
+  static {
+    if (!JNativeCodeLoader.isNativeCodeLoaded()) {
+      LOG.error("Cannot load native epoll library without jnative");
+    }
+  }
+
   private EPoll() {
   }
 
-  private static final int SIZEOF_EPOLLEVENT = eventSize();
-  private static final int OFFSETOF_EVENTS = eventsOffset();
-  private static final int OFFSETOF_FD = dataOffset();
+  static final int SIZEOF_EPOLLEVENT = eventSize();
+  static final int OFFSETOF_EVENTS = eventsOffset();
+  static final int OFFSETOF_FD = dataOffset();
 
-  // EventLoop operations and constants
-  public static final int EPOLLIN = 0x01;
-  public static final int EPOLLOUT = 0x02;
-  public static final int EPOLLACCEPT = 0x04;
-  public static final int EPOLLRDHUP = 0x08;
+  // EventLoop operations and constants, as in sys/epoll.h
+  public static final int EPOLLIN = 0x001;
+  public static final int EPOLLOUT = 0x004;
+  public static final int EPOLLERR = 0x008;
+  public static final int EPOLLHUP = 0x010;
+  public static final int EPOLLRDHUP = 0x2000;
+  // a listening socket polls readable when a connection is pending
+  public static final int EPOLLACCEPT = EPOLLIN;
 
 
   // opcodes
@@ -42,6 +65,10 @@ public class EPoll {
   // flags
   static final int EPOLLONESHOT = (1 << 30);
 
+  // results of read and write besides a byte count
+  static final int EOF = -1;
+  static final int UNAVAILABLE = -2;
+
 
   // -- Native methods --
 
@@ -51,15 +78,61 @@ public class EPoll {
 
   private static native int dataOffset();
 
-  static native int eventFd();
+  /**
+   * Creates a non-blocking eventfd.
+   */
+  static native int eventFd() throws IOException;
+
+  /**
+   * Consumes the counter of a non-blocking eventfd, returning 0 if it was not
+   * signalled.
+   */
+  static native long eventFdRead(int efd) throws IOException;
+
+  static native void eventFdWrite(int efd, long value) throws IOException;
 
   static native int epollCreate() throws IOException;
 
+  /**
+   * @return 0 on success, the errno otherwise
+   */
   static native int epollCtl(int epfd, int opcode, int fd, int events);
 
-  static native int epollWait(int epfd, long pollAddress, int numfds)
+  /**
+   * Waits for events into the array at <code>pollAddress</code>.
+   *
+   * @param timeout in milliseconds, or -1 to wait indefinitely
+   * @return the number of events, 0 if interrupted by a signal
+   */
+  static native int epollWait(int epfd, long pollAddress, int numfds, int timeout)
       throws IOException;
 
+  static native void setNonBlocking(int fd, boolean nonBlocking) throws IOException;
+
+  /**
+   * Returns the file status flags of an fd, as <code>F_GETFL</code>.
+   */
+  static native int getFlags(int fd) throws IOException;
+
+  /**
+   * Creates a connected pair of UNIX stream sockets into <code>fds</code>.
+   */
+  static native void socketPair(int[] fds) throws IOException;
+
+  /**
+   * Reads from a non-blocking fd.
+   *
+   * @return the number of bytes read, {@link #EOF} or {@link #UNAVAILABLE}
+   */
+  static native int read(int fd, long address, int length) throws IOException;
+
+  /**
+   * Writes to a non-blocking fd.
+   *
+   * @return the number of bytes written or {@link #UNAVAILABLE}
+   */
+  static native int write(int fd, long address, int length) throws IOException;
+
 //  static native int epollWait(int efd, long[] events, int timeout);
 //  static native void epollCtlAdd(int epfd, final int fd, final int flags, final int id);
 //  static native void epollCtlMod(int epfd, final int fd, final int flags, final int id);
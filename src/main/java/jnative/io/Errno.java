@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+/**
+ * The Linux errno values file operations can fail with.
+ */
+public enum Errno {
+  EPERM(1),
+  ENOENT(2),
+  EINTR(4),
+  EIO(5),
+  EBADF(9),
+  EAGAIN(11),
+  ENOMEM(12),
+  EACCES(13),
+  EFAULT(14),
+  EBUSY(16),
+  EEXIST(17),
+  EXDEV(18),
+  ENODEV(19),
+  ENOTDIR(20),
+  EISDIR(21),
+  EINVAL(22),
+  ENFILE(23),
+  EMFILE(24),
+  ETXTBSY(26),
+  EFBIG(27),
+  ENOSPC(28),
+  ESPIPE(29),
+  EROFS(30),
+  ENOSYS(38),
+  EBADMSG(74),
+  EOVERFLOW(75),
+  EOPNOTSUPP(95),
+  EDQUOT(122),
+
+  UNKNOWN(-1);
+
+  private final int value;
+
+  Errno(int value) {
+    this.value = value;
+  }
+
+  public int value() {
+    return value;
+  }
+
+  /**
+   * Returns the constant for an errno value, or {@link #UNKNOWN}.
+   */
+  public static Errno fromCode(int value) {
+    for (Errno errno : values()) {
+      if (errno.value == value) {
+        return errno;
+      }
+    }
+    return UNKNOWN;
+  }
+}
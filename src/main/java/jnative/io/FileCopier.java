@@ -0,0 +1,407 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.JNativeUnsafe;
+import jnative.utils.NativeObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+
+/**
+ * Copies a range of one file to another, possibly on a different device,
+ * through a pipeline of {@link AIO} requests.
+ * <p>
+ * A ring of aligned buffers cycles between reading from the source and
+ * writing to the destination, with up to <code>depth</code> reads and
+ * <code>depth</code> writes in flight, so the copy runs at the speed of the
+ * slower device. Optionally <code>copy_file_range</code> is tried first and
+ * the pipeline only takes over if the kernel cannot copy between the two
+ * files. The destination is synced once, at the end.
+ * <p>
+ * Both files may be opened with <code>O_DIRECT</code>; offsets must then be
+ * multiples of the alignment. When the length is not a multiple of it, the
+ * last block is written whole: its bytes past the copied range are first
+ * read from the destination, and if that block extends the destination, the
+ * file is truncated back afterwards. This class is not thread safe.
+ */
+public class FileCopier {
+
+  private static final Log LOG = LogFactory.getLog(FileCopier.class.getName());
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+
+  /**
+   * Called before each chunk is read, e.g. to rate limit the copy.
+   */
+  public interface Throttle {
+    void acquire(long bytes) throws InterruptedException;
+  }
+
+  /**
+   * Called after each chunk is written.
+   */
+  public interface ProgressListener {
+    void progress(long copied, long total);
+  }
+
+  private static final byte FREE = 0;
+  private static final byte READING = 1;
+  private static final byte READ = 2;
+  private static final byte WRITING = 3;
+  private static final byte MERGING = 4;
+
+  private final int bufferSize;
+  private final int alignment;
+  private final int depth;
+  private final AIO aio;
+  private final NativeObject buffers;
+
+  private final byte[] states;
+  private final long[] positions;
+  private final int[] lengths;
+  private final int[] dataLengths;
+  private final int[] queue;
+  private IOException submitError;
+
+  private Throttle throttle;
+  private ProgressListener listener;
+  private boolean useCopyFileRange;
+
+  /**
+   * @param bufferSize the size of each read and write, a multiple of
+   *                   <code>alignment</code>
+   * @param alignment  the O_DIRECT alignment of both files, at most the page
+   *                   size
+   * @param depth      the number of reads, and of writes, kept in flight
+   */
+  public FileCopier(int bufferSize, int alignment, int depth) {
+    if (bufferSize <= 0 || bufferSize % alignment != 0) {
+      throw new IllegalArgumentException("Buffer size " + bufferSize
+          + " is not a multiple of " + alignment);
+    }
+    if (depth < 1) {
+      throw new IllegalArgumentException("Depth must be positive: " + depth);
+    }
+    this.bufferSize = bufferSize;
+    this.alignment = alignment;
+    this.depth = depth;
+    int count = 2 * depth;
+    this.aio = new AIO(count);
+    // followed by one block for merging the destination's tail
+    this.buffers = new NativeObject((long) count * bufferSize + alignment, true);
+    this.states = new byte[count];
+    this.positions = new long[count];
+    this.lengths = new int[count];
+    this.dataLengths = new int[count];
+    this.queue = new int[count];
+  }
+
+  public void setThrottle(Throttle throttle) {
+    this.throttle = throttle;
+  }
+
+  public void setProgressListener(ProgressListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Whether to try <code>copy_file_range</code> before the AIO pipeline.
+   */
+  public void setUseCopyFileRange(boolean useCopyFileRange) {
+    this.useCopyFileRange = useCopyFileRange;
+  }
+
+  /**
+   * Copies <code>length</code> bytes, or up to the end of the source if it is
+   * shorter, and syncs the destination.
+   *
+   * @return the number of bytes copied
+   */
+  public long copy(int srcFd, long srcOffset, int dstFd, long dstOffset, long length)
+      throws IOException, InterruptedException {
+    if (srcOffset % alignment != 0 || dstOffset % alignment != 0) {
+      throw new IllegalArgumentException("Offsets " + srcOffset + " and " + dstOffset
+          + " must be multiples of " + alignment);
+    }
+    long copied = -1;
+    if (useCopyFileRange) {
+      copied = copyInKernel(srcFd, srcOffset, dstFd, dstOffset, length);
+    }
+    if (copied < 0) {
+      copied = pipeline(srcFd, srcOffset, dstFd, dstOffset, length);
+    }
+    AIO.fdatasync(dstFd);
+    return copied;
+  }
+
+  /**
+   * Copies with <code>copy_file_range</code>.
+   *
+   * @return the number of bytes copied, or -1 if the kernel cannot copy
+   *         between these files and nothing was copied
+   */
+  private long copyInKernel(int srcFd, long srcOffset, int dstFd, long dstOffset, long length)
+      throws IOException, InterruptedException {
+    long chunk = (long) bufferSize * depth;
+    long copied = 0;
+    while (copied < length) {
+      long len = Math.min(chunk, length - copied);
+      if (throttle != null) {
+        throttle.acquire(len);
+      }
+      long n;
+      try {
+        n = AIO.copyFileRange(srcFd, srcOffset + copied, dstFd, dstOffset + copied, len);
+      } catch (NativeIOException e) {
+        if (copied == 0 && isUnsupported(e.getErrno())) {
+          LOG.debug("copy_file_range not usable, falling back to AIO: " + e);
+          return -1;
+        }
+        throw e;
+      }
+      if (n == 0) {
+        break;
+      }
+      copied += n;
+      if (listener != null) {
+        listener.progress(copied, length);
+      }
+    }
+    return copied;
+  }
+
+  private static boolean isUnsupported(Errno errno) {
+    return errno == Errno.EXDEV || errno == Errno.ENOSYS
+        || errno == Errno.EOPNOTSUPP || errno == Errno.EINVAL;
+  }
+
+  private long align(long length) {
+    return (length + alignment - 1) / alignment * alignment;
+  }
+
+  private long bufferAddress(int i) {
+    return buffers.address() + (long) i * bufferSize;
+  }
+
+  private long mergeAddress() {
+    return buffers.address() + (long) states.length * bufferSize;
+  }
+
+  /**
+   * Copies through the AIO pipeline.
+   */
+  private long pipeline(int srcFd, long srcOffset, int dstFd, long dstOffset, long length)
+      throws IOException, InterruptedException {
+    long dstSize = AIO.size(dstFd);
+    long end = length;     // shrinks to the size of the source at its end
+    long readPosition = 0;
+    long written = 0;
+    boolean padded = false;
+    int reading = 0;
+    int writing = 0;
+    IOException error = null;
+    submitError = null;
+
+    try {
+      while (true) {
+        int queued = 0;
+        for (int i = 0; i < states.length && error == null; i++) {
+          if (reading >= depth || readPosition >= end) {
+            break;
+          }
+          if (states[i] != FREE) {
+            continue;
+          }
+          int len = (int) Math.min(bufferSize, align(end - readPosition));
+          if (throttle != null) {
+            try {
+              throttle.acquire(len);
+            } catch (Throwable t) {
+              // hand the reads prepared so far to the kernel, so that they
+              // are drained below rather than left behind for the next copy
+              reading -= submit(queued, FREE);
+              throw t;
+            }
+          }
+          states[i] = READING;
+          positions[i] = readPosition;
+          lengths[i] = len;
+          aio.prepareRead(srcFd, srcOffset + readPosition, bufferAddress(i), len, i);
+          readPosition += len;
+          reading++;
+          queue[queued++] = i;
+        }
+        reading -= submit(queued, FREE);
+        if (error == null) {
+          error = submitError;
+        }
+        if (reading + writing == 0) {
+          break;
+        }
+
+        int n = aio.poll(-1);
+        for (int e = 0; e < n; e++) {
+          int i = (int) aio.eventTag(e);
+          long res = aio.eventResult(e);
+          if (states[i] == MERGING) {
+            reading--;
+            if (res < 0) {
+              if (error == null) {
+                error = new IOException("Read of fd " + dstFd + " at "
+                    + (dstOffset + positions[i] + dataLengths[i] / alignment * alignment)
+                    + " failed with errno " + -res);
+              }
+              states[i] = FREE;
+              continue;
+            }
+            // keep the destination's bytes past the copied range
+            int head = dataLengths[i] % alignment;
+            long tail = Math.max(0, Math.min(alignment, res) - head);
+            long blockStart = bufferAddress(i) + dataLengths[i] - head;
+            unsafe.copyMemory(mergeAddress() + head, blockStart + head, tail);
+            states[i] = READ;
+          } else if (states[i] == READING) {
+            reading--;
+            if (res < 0) {
+              if (error == null) {
+                error = new IOException("Read of fd " + srcFd + " at "
+                    + (srcOffset + positions[i]) + " failed with errno " + -res);
+              }
+              states[i] = FREE;
+              continue;
+            }
+            if (res < lengths[i]) {
+              end = Math.min(end, positions[i] + res);
+            }
+            long data = Math.min(lengths[i], end - positions[i]);
+            if (data <= 0 || error != null) {
+              states[i] = FREE;
+              continue;
+            }
+            dataLengths[i] = (int) data;
+            lengths[i] = (int) align(data);
+            if (lengths[i] > data) {
+              unsafe.setMemory(bufferAddress(i) + data, lengths[i] - data, (byte) 0);
+              padded = true;
+              if (dstSize > dstOffset + positions[i] + data && error == null) {
+                // only the last block can be partial, so the merge block is free
+                states[i] = MERGING;
+                aio.prepareRead(dstFd, dstOffset + positions[i] + data / alignment * alignment,
+                    mergeAddress(), alignment, i);
+                reading++;
+                queue[0] = i;
+                reading -= submit(1, FREE);
+                if (error == null) {
+                  error = submitError;
+                }
+                continue;
+              }
+            }
+            states[i] = READ;
+          } else if (states[i] == WRITING) {
+            writing--;
+            states[i] = FREE;
+            if (res != lengths[i]) {
+              if (error == null) {
+                error = new IOException("Write of fd " + dstFd + " at "
+                    + (dstOffset + positions[i]) + " returned " + res
+                    + " instead of " + lengths[i]);
+              }
+              continue;
+            }
+            written += dataLengths[i];
+            if (listener != null) {
+              listener.progress(written, length);
+            }
+          }
+        }
+
+        queued = 0;
+        for (int i = 0; i < states.length && writing < depth && error == null; i++) {
+          if (states[i] == READ) {
+            states[i] = WRITING;
+            aio.prepareWrite(dstFd, dstOffset + positions[i], bufferAddress(i), lengths[i], i);
+            writing++;
+            queue[queued++] = i;
+          }
+        }
+        writing -= submit(queued, READ);
+        if (error == null) {
+          error = submitError;
+        }
+        if (error != null && reading + writing == 0) {
+          break;
+        }
+      }
+    } finally {
+      // the buffers must not be reused while the kernel still owns them
+      drain(reading + writing);
+      for (int i = 0; i < states.length; i++) {
+        states[i] = FREE;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+    // the padding of the last block extended the destination
+    if (padded && dstSize < align(dstOffset + written)) {
+      AIO.ftruncate(dstFd, Math.max(dstSize, dstOffset + written));
+    }
+    return written;
+  }
+
+  /**
+   * Submits the <code>nr</code> requests listed in {@link #queue}. If the
+   * kernel rejects some of them, their buffers go back to
+   * <code>previousState</code> and the submission error is remembered.
+   *
+   * @return the number of rejected requests
+   */
+  private int submit(int nr, byte previousState) {
+    if (nr == 0) {
+      return 0;
+    }
+    try {
+      aio.submit();
+      return 0;
+    } catch (IOException e) {
+      for (int i = aio.accepted(); i < nr; i++) {
+        states[queue[i]] = previousState;
+      }
+      if (submitError == null) {
+        submitError = e;
+      }
+      return nr - aio.accepted();
+    }
+  }
+
+  private void drain(int inFlight) {
+    while (inFlight > 0) {
+      inFlight -= aio.poll(-1);
+    }
+  }
+
+  public void close() {
+    aio.close();
+    buffers.free();
+  }
+}
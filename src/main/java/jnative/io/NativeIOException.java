@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import java.io.IOException;
+
+/**
+ * An exception thrown by a failed system call, carrying its errno.
+ */
+public class NativeIOException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final int errnoValue;
+  private final Errno errno;
+
+  /**
+   * Called from native code.
+   */
+  public NativeIOException(String message, int errno) {
+    super(message);
+    this.errnoValue = errno;
+    this.errno = Errno.fromCode(errno);
+  }
+
+  public Errno getErrno() {
+    return errno;
+  }
+
+  /**
+   * Returns the raw errno, useful when {@link #getErrno()} is
+   * {@link Errno#UNKNOWN}.
+   */
+  public int getErrnoValue() {
+    return errnoValue;
+  }
+
+  @Override
+  public String toString() {
+    return errno + ": " + getMessage();
+  }
+}
@@ -0,0 +1,322 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.AlignedBuffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a file as a stream of direct buffers, keeping a window of aligned
+ * {@link AIO} reads in flight ahead of the consumer.
+ * <p>
+ * Read-ahead only starts once a few chunks have been consumed in order;
+ * after a {@link #seek(long)} that breaks the sequence the reader falls back
+ * to one read at a time. While reading sequentially the window follows
+ * Little's law: the completion latency divided by the time the consumer
+ * spends on a chunk, plus one. It backs off when the latency inflates well
+ * above the lowest latency seen, which means the device is queueing rather
+ * than serving the extra requests in parallel.
+ * <p>
+ * The file descriptor is not closed by this class and may be opened with
+ * <code>O_DIRECT</code>. This class is not thread safe.
+ */
+public class SequentialReader {
+
+  /** Chunks read in order before read-ahead kicks in. */
+  static final int SEQUENTIAL_THRESHOLD = 2;
+  /** Latency above this multiple of the baseline shrinks the window. */
+  static final double LATENCY_INFLATION = 2.0;
+  /** Weight of a new sample in the moving averages. */
+  static final double EWMA_WEIGHT = 0.125;
+
+  private static final byte FREE = 0;
+  private static final byte IN_FLIGHT = 1;
+  private static final byte READY = 2;
+
+  private final int fd;
+  private final int chunkSize;
+  private final int alignment;
+  private final int minWindow;
+  private final int maxWindow;
+  private final AIO aio;
+
+  // a ring of chunks; slots head .. head + issued - 1 hold increasing offsets
+  private final ByteBuffer[] chunks;
+  private final long[] chunkOffsets;
+  private final long[] submitNanos;
+  private final long[] results;
+  private final byte[] states;
+  private int head;
+  private int issued;
+  private boolean headInUse;
+
+  private long position;
+  private long nextReadOffset;
+  private long eofOffset = Long.MAX_VALUE;
+
+  private int window;
+  private int sequentialRun;
+  private double latencyNanos;
+  private double minLatencyNanos = Double.MAX_VALUE;
+  private double consumeNanos;
+  private long returnedNanos;
+
+  /**
+   * @param fd         the file to read
+   * @param position   the offset to start reading at
+   * @param chunkSize  the size of each read, a multiple of
+   *                   <code>alignment</code>
+   * @param alignment  the buffer and offset alignment required by the file,
+   *                   a power of two
+   * @param minWindow  the smallest read-ahead window while sequential
+   * @param maxWindow  the largest read-ahead window
+   */
+  public SequentialReader(int fd, long position, int chunkSize, int alignment,
+                          int minWindow, int maxWindow) {
+    if (chunkSize <= 0 || chunkSize % alignment != 0) {
+      throw new IllegalArgumentException("Chunk size " + chunkSize
+          + " is not a multiple of " + alignment);
+    }
+    if (minWindow < 1 || maxWindow < minWindow) {
+      throw new IllegalArgumentException("Bad window bounds: " + minWindow + ", " + maxWindow);
+    }
+    this.fd = fd;
+    this.chunkSize = chunkSize;
+    this.alignment = alignment;
+    this.minWindow = minWindow;
+    this.maxWindow = maxWindow;
+    this.window = minWindow;
+
+    // one more slot than the window, for the chunk held by the consumer
+    int slots = maxWindow + 1;
+    this.aio = new AIO(slots);
+    this.chunks = AlignedBuffers.slice(
+        AlignedBuffers.allocate(chunkSize * slots, alignment), chunkSize, slots);
+    this.chunkOffsets = new long[slots];
+    this.submitNanos = new long[slots];
+    this.results = new long[slots];
+    this.states = new byte[slots];
+    reset(position);
+  }
+
+  /**
+   * Returns the next chunk of the file, positioned at the current offset.
+   * The buffer stays valid until the next call to this method,
+   * {@link #seek(long)} or {@link #close()}.
+   *
+   * @return the next chunk, or null at the end of the file
+   */
+  public ByteBuffer next() throws IOException {
+    long now = System.nanoTime();
+    if (headInUse) {
+      recordConsume(now - returnedNanos);
+      release();
+    }
+    if (position >= eofOffset) {
+      return null;
+    }
+
+    fill();
+    // take what completed while the consumer was busy, so that its time is
+    // not counted as latency of reads that finished long ago
+    reap(0);
+    while (states[head] != READY) {
+      reap(-1);
+    }
+
+    long res = results[head];
+    if (res < 0) {
+      throw new IOException("Read at " + chunkOffsets[head] + " failed with errno " + -res);
+    }
+    long offset = chunkOffsets[head];
+    if (res < chunkSize) {
+      eofOffset = Math.min(eofOffset, offset + res);
+    }
+    int skip = (int) (position - offset);
+    if (skip >= res) {
+      release();
+      return null;
+    }
+
+    ByteBuffer chunk = chunks[head];
+    chunk.limit((int) res).position(skip);
+    headInUse = true;
+    position = offset + res;
+    sequentialRun++;
+    returnedNanos = System.nanoTime();
+    return chunk;
+  }
+
+  /**
+   * Moves the read position. A seek to the current position keeps the
+   * read-ahead going; any other seek discards it and resets the reader to
+   * random access mode.
+   */
+  public void seek(long offset) throws IOException {
+    if (offset == position) {
+      return;
+    }
+    drain();
+    reset(offset);
+  }
+
+  /**
+   * Returns the offset of the next byte {@link #next()} will return.
+   */
+  public long position() {
+    return position;
+  }
+
+  /**
+   * Returns the current read-ahead window.
+   */
+  public int window() {
+    return window;
+  }
+
+  /**
+   * Returns whether reads are currently considered sequential.
+   */
+  public boolean isSequential() {
+    return sequentialRun >= SEQUENTIAL_THRESHOLD;
+  }
+
+  /**
+   * Waits for outstanding reads and releases the AIO context. The file
+   * descriptor is left open.
+   */
+  public void close() throws IOException {
+    drain();
+    aio.close();
+  }
+
+  private void reset(long offset) {
+    position = offset;
+    nextReadOffset = offset - offset % alignment;
+    eofOffset = Long.MAX_VALUE;
+    head = 0;
+    issued = 0;
+    headInUse = false;
+    sequentialRun = 0;
+    window = minWindow;
+  }
+
+  private void release() {
+    states[head] = FREE;
+    head = (head + 1) % chunks.length;
+    issued--;
+    headInUse = false;
+  }
+
+  /**
+   * Issues reads until the window is full.
+   */
+  private void fill() throws IOException {
+    int target = isSequential() ? adaptWindow() : 1;
+    int queued = 0;
+    while (issued < target && nextReadOffset < eofOffset) {
+      int slot = (head + issued) % chunks.length;
+      ByteBuffer chunk = chunks[slot];
+      chunk.clear();
+      chunkOffsets[slot] = nextReadOffset;
+      states[slot] = IN_FLIGHT;
+      submitNanos[slot] = System.nanoTime();
+      aio.prepareRead(fd, nextReadOffset, chunk, slot);
+      nextReadOffset += chunkSize;
+      issued++;
+      queued++;
+    }
+    if (queued > 0) {
+      try {
+        aio.submit();
+      } catch (IOException e) {
+        // take back the reads the kernel did not accept
+        for (int i = aio.accepted(); i < queued; i++) {
+          issued--;
+          states[(head + issued) % chunks.length] = FREE;
+          nextReadOffset -= chunkSize;
+        }
+        throw e;
+      }
+    }
+  }
+
+  int adaptWindow() {
+    if (latencyNanos > 0) {
+      int target;
+      if (latencyNanos > LATENCY_INFLATION * minLatencyNanos) {
+        target = window - 1;
+      } else {
+        target = (int) Math.min(maxWindow,
+            Math.ceil(latencyNanos / Math.max(consumeNanos, 1.0)) + 1);
+      }
+      window = Math.max(minWindow, Math.min(maxWindow, target));
+    }
+    return window;
+  }
+
+  private void reap(long timeout) {
+    int n = aio.poll(timeout);
+    long now = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      int slot = (int) aio.eventTag(i);
+      results[slot] = aio.eventResult(i);
+      states[slot] = READY;
+      recordLatency(now - submitNanos[slot]);
+    }
+  }
+
+  void recordLatency(long latency) {
+    latencyNanos = ewma(latencyNanos, latency);
+    minLatencyNanos = Math.min(minLatencyNanos, latency);
+  }
+
+  void recordConsume(long nanos) {
+    consumeNanos = ewma(consumeNanos, nanos);
+  }
+
+  private static double ewma(double average, double sample) {
+    return average == 0 ? sample : average + EWMA_WEIGHT * (sample - average);
+  }
+
+  /**
+   * Waits until no read is in flight, since the buffers cannot be reused or
+   * freed before the kernel is done with them.
+   */
+  private void drain() {
+    int inFlight = 0;
+    for (byte state : states) {
+      if (state == IN_FLIGHT) {
+        inFlight++;
+      }
+    }
+    while (inFlight > 0) {
+      int n = aio.poll(-1);
+      for (int i = 0; i < n; i++) {
+        states[(int) aio.eventTag(i)] = FREE;
+      }
+      inFlight -= n;
+    }
+    for (int i = 0; i < states.length; i++) {
+      states[i] = FREE;
+    }
+  }
+}
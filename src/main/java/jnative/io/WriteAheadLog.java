@@ -0,0 +1,444 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.io;
+
+import jnative.utils.JNativeUnsafe;
+import jnative.utils.NativeObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only log file written through {@link AIO} with
+ * <code>O_DIRECT</code> and group commit.
+ * <p>
+ * Appending threads copy their records into a shared, page aligned ring of
+ * blocks and get back the log offset just past their record. A single flusher
+ * thread writes out the dirty blocks with one batched submission, issues one
+ * <code>fdatasync</code> for the whole batch and then acknowledges every
+ * {@link #commit(long)} it covered. Blocks are flushed once they are full,
+ * once somebody waits for a commit, or once the flush interval has elapsed.
+ * <p>
+ * The last block of the log is usually only partially filled; it is written
+ * as a whole and rewritten by later flushes as it fills up. The content of
+ * that block past the committed end is undefined. When an existing log is
+ * reopened in the middle of a block, that block is read back first so the
+ * rewrite preserves its head (read-modify-write). The log end is given by the
+ * caller, typically from its own recovery scan, since the file size includes
+ * preallocated space.
+ * <p>
+ * This class is thread safe.
+ */
+public class WriteAheadLog {
+
+  private static final Log LOG = LogFactory.getLog(WriteAheadLog.class.getName());
+
+  private static final Unsafe unsafe = JNativeUnsafe.getUnsafe();
+  private static final long BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+
+  private final String fileName;
+  private final int fd;
+  private final int blockSize;
+  private final int ringSize;
+  private final NativeObject ring;
+  private final long preallocateSize;
+  private final long flushIntervalNanos;
+  private final AIO aio;
+  private final Thread flusher;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notFull = lock.newCondition();
+  private final Condition flushNeeded = lock.newCondition();
+  private final Condition synced = lock.newCondition();
+
+  // Guarded by lock.
+  // The ring holds the log from ringStart, the start of the block containing
+  // durableOffset, up to writeOffset.
+  private long ringStart;
+  private long writeOffset;
+  private long durableOffset;
+  private long lastFlushNanos;
+  private int syncWaiters;
+  private IOException failure;
+  private boolean closed;
+  private boolean flusherDone;
+
+  // Only used by the flusher thread
+  private long allocatedEnd;
+
+  /**
+   * Opens (or creates) a log and starts its flusher thread.
+   *
+   * @param fileName           the log file
+   * @param logEnd             the offset at which to append, 0 for a new log
+   * @param blockSize          the unit of writes, a multiple of 512
+   * @param ringBlocks         the number of blocks buffered in memory
+   * @param preallocateSize    the size of each fallocate extension, or 0 to
+   *                           not preallocate
+   * @param flushIntervalMillis the maximum time dirty data waits for a flush
+   */
+  public WriteAheadLog(String fileName, long logEnd, int blockSize, int ringBlocks,
+                       long preallocateSize, long flushIntervalMillis) throws IOException {
+    if (blockSize <= 0 || blockSize % 512 != 0) {
+      throw new IllegalArgumentException("Block size must be a multiple of 512: " + blockSize);
+    }
+    if (ringBlocks < 2) {
+      throw new IllegalArgumentException("Need at least 2 ring blocks: " + ringBlocks);
+    }
+    if (logEnd < 0) {
+      throw new IllegalArgumentException("Negative log end: " + logEnd);
+    }
+    this.fileName = fileName;
+    this.blockSize = blockSize;
+    this.ringSize = blockSize * ringBlocks;
+    this.preallocateSize = preallocateSize;
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+    this.fd = AIO.open(fileName, AIO.O_CREAT | AIO.O_RDWR | AIO.O_DIRECT);
+    if (fd < 0) {
+      throw new FileNotFoundException(fileName);
+    }
+    this.ring = new NativeObject(ringSize, true);
+    unsafe.setMemory(ring.address(), ringSize, (byte) 0);
+    this.aio = new AIO(ringBlocks);
+
+    this.ringStart = floor(logEnd);
+    this.writeOffset = logEnd;
+    this.durableOffset = logEnd;
+    this.allocatedEnd = logEnd;
+    try {
+      if (ringStart != logEnd) {
+        readPartialBlock(logEnd);
+      }
+    } catch (IOException e) {
+      aio.close();
+      AIO.close(fd);
+      ring.free();
+      throw e;
+    }
+    this.lastFlushNanos = System.nanoTime();
+
+    this.flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runFlusher();
+      }
+    }, "WAL flusher for " + fileName);
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  private long floor(long offset) {
+    return offset - offset % blockSize;
+  }
+
+  private long ceil(long offset) {
+    return floor(offset + blockSize - 1);
+  }
+
+  private long ringAddress(long offset) {
+    return ring.address() + offset % ringSize;
+  }
+
+  private void readPartialBlock(long logEnd) throws IOException {
+    aio.prepareRead(fd, ringStart, ringAddress(ringStart), blockSize, ringStart);
+    aio.submit();
+    while (aio.poll(-1) == 0) {
+    }
+    long res = aio.eventResult(0);
+    if (res < logEnd - ringStart) {
+      throw new IOException("Could not read the last block of " + fileName
+          + " at " + ringStart + ": " + res);
+    }
+    int head = (int) (logEnd - ringStart);
+    unsafe.setMemory(ringAddress(logEnd), blockSize - head, (byte) 0);
+  }
+
+  /**
+   * Appends the remaining bytes of <code>record</code>, blocking while the
+   * ring is full. The record's position is advanced to its limit.
+   *
+   * @return the log offset just past the record, to be passed to
+   *         {@link #commit(long)}
+   */
+  public long append(ByteBuffer record) throws IOException, InterruptedException {
+    int length = record.remaining();
+    if (length > ringSize - blockSize) {
+      throw new IllegalArgumentException("Record of " + length
+          + " bytes does not fit in the ring");
+    }
+    lock.lockInterruptibly();
+    try {
+      while (true) {
+        checkOpen();
+        if (writeOffset + length - ringStart <= ringSize) {
+          break;
+        }
+        flushNeeded.signal();
+        notFull.await();
+      }
+      copy(record, writeOffset, length);
+      long end = writeOffset + length;
+      if (floor(end) != floor(writeOffset)) {
+        // a block was filled up
+        flushNeeded.signal();
+      }
+      writeOffset = end;
+      return end;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void copy(ByteBuffer record, long offset, int length) {
+    Object base;
+    long address;
+    if (record instanceof DirectBuffer) {
+      base = null;
+      address = ((DirectBuffer) record).address() + record.position();
+    } else {
+      base = record.array();
+      address = BYTE_ARRAY_OFFSET + record.arrayOffset() + record.position();
+    }
+    int first = (int) Math.min(length, ringSize - offset % ringSize);
+    unsafe.copyMemory(base, address, null, ringAddress(offset), first);
+    if (first < length) {
+      unsafe.copyMemory(base, address + first, null, ring.address(), length - first);
+    }
+    record.position(record.limit());
+  }
+
+  /**
+   * Blocks until everything up to <code>offset</code> is on disk.
+   */
+  public void commit(long offset) throws IOException, InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      if (offset > writeOffset) {
+        throw new IllegalArgumentException("Offset " + offset
+            + " is past the end of the log " + writeOffset);
+      }
+      syncWaiters++;
+      try {
+        while (durableOffset < offset) {
+          if (failure != null) {
+            throw new IOException("Write-ahead log " + fileName + " failed", failure);
+          }
+          if (flusherDone) {
+            throw new IOException("Write-ahead log " + fileName + " is closed");
+          }
+          flushNeeded.signal();
+          synced.await();
+        }
+      } finally {
+        syncWaiters--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Appends <code>record</code> and waits until it is on disk.
+   */
+  public long appendAndCommit(ByteBuffer record) throws IOException, InterruptedException {
+    long end = append(record);
+    commit(end);
+    return end;
+  }
+
+  /**
+   * Returns the offset up to which the log is on disk.
+   */
+  public long durableOffset() {
+    lock.lock();
+    try {
+      return durableOffset;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (failure != null) {
+      throw new IOException("Write-ahead log " + fileName + " failed", failure);
+    }
+    if (closed) {
+      throw new IOException("Write-ahead log " + fileName + " is closed");
+    }
+  }
+
+  private void runFlusher() {
+    try {
+      while (flushOnce()) {
+      }
+    } catch (IOException e) {
+      LOG.error("Flushing " + fileName + " failed", e);
+      lock.lock();
+      try {
+        failure = e;
+      } finally {
+        lock.unlock();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      lock.lock();
+      try {
+        flusherDone = true;
+        synced.signalAll();
+        notFull.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Waits until there is something worth flushing, then writes and syncs it.
+   *
+   * @return false once the log is closed and fully flushed
+   */
+  private boolean flushOnce() throws IOException, InterruptedException {
+    long start;
+    long end;
+    lock.lock();
+    try {
+      while (true) {
+        boolean dirty = writeOffset > durableOffset;
+        long waitNanos = lastFlushNanos + flushIntervalNanos - System.nanoTime();
+        if (dirty && (closed || syncWaiters > 0 || waitNanos <= 0
+            || floor(writeOffset) > ringStart)) {
+          break;
+        }
+        if (!dirty && closed) {
+          return false;
+        }
+        if (dirty) {
+          flushNeeded.awaitNanos(waitNanos);
+        } else {
+          flushNeeded.await();
+        }
+      }
+      start = ringStart;
+      end = writeOffset;
+    } finally {
+      lock.unlock();
+    }
+
+    long alignedEnd = ceil(end);
+    preallocate(alignedEnd);
+    int nr = 0;
+    for (long pos = start; pos < alignedEnd; nr++) {
+      int len = (int) Math.min(alignedEnd - pos, ringSize - pos % ringSize);
+      aio.prepareWrite(fd, pos, ringAddress(pos), len, pos);
+      pos += len;
+    }
+    aio.submit();
+    awaitWrites(nr, alignedEnd);
+    AIO.fdatasync(fd);
+
+    // Blocks before the new ring start are on disk and will not be written
+    // again; clear them so that a later partial block carries no stale bytes.
+    long newRingStart = floor(end);
+    for (long pos = start; pos < newRingStart; ) {
+      int len = (int) Math.min(newRingStart - pos, ringSize - pos % ringSize);
+      unsafe.setMemory(ringAddress(pos), len, (byte) 0);
+      pos += len;
+    }
+
+    lock.lock();
+    try {
+      durableOffset = end;
+      ringStart = newRingStart;
+      lastFlushNanos = System.nanoTime();
+      synced.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  private void preallocate(long end) throws IOException {
+    if (preallocateSize <= 0 || end <= allocatedEnd) {
+      return;
+    }
+    long len = end - allocatedEnd;
+    len = (len + preallocateSize - 1) / preallocateSize * preallocateSize;
+    AIO.fallocate(fd, allocatedEnd, len);
+    allocatedEnd += len;
+  }
+
+  /**
+   * Reaps <code>nr</code> write completions, each tagged with its file offset.
+   */
+  private void awaitWrites(int nr, long alignedEnd) throws IOException {
+    IOException error = null;
+    while (nr > 0) {
+      int n = aio.poll(-1);
+      for (int i = 0; i < n; i++) {
+        long pos = aio.eventTag(i);
+        long expected = Math.min(alignedEnd - pos, ringSize - pos % ringSize);
+        long res = aio.eventResult(i);
+        if (res != expected && error == null) {
+          error = new IOException("Write to " + fileName + " at " + pos
+              + " returned " + res + " instead of " + expected);
+        }
+      }
+      nr -= n;
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Flushes and syncs all appended records, stops the flusher and closes the
+   * file.
+   */
+  public void close() throws IOException, InterruptedException {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      flushNeeded.signal();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    flusher.join();
+    aio.close();
+    AIO.close(fd);
+    ring.free();
+    if (failure != null) {
+      throw new IOException("Write-ahead log " + fileName + " failed", failure);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized, aligned direct buffers.
+ * <p>
+ * Buffers are allocated on demand when the pool is empty and up to
+ * <code>maxPooled</code> of them are kept for reuse once released.
+ */
+public class AlignedBufferPool {
+
+  private final int bufferSize;
+  private final int alignment;
+  private final int maxPooled;
+  private final ArrayDeque<ByteBuffer> pool;
+
+  public AlignedBufferPool(int bufferSize, int alignment, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.alignment = alignment;
+    this.maxPooled = maxPooled;
+    this.pool = new ArrayDeque<ByteBuffer>(maxPooled);
+  }
+
+  /**
+   * Returns a cleared buffer of {@link #bufferSize()} bytes.
+   */
+  public synchronized ByteBuffer acquire() {
+    ByteBuffer buffer = pool.pollFirst();
+    if (buffer == null) {
+      buffer = AlignedBuffers.allocate(bufferSize, alignment);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  public synchronized void release(ByteBuffer buffer) {
+    if (pool.size() < maxPooled) {
+      pool.addFirst(buffer);
+    }
+  }
+
+  public int bufferSize() {
+    return bufferSize;
+  }
+
+  public int alignment() {
+    return alignment;
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.utils;
+
+import sun.nio.ch.DirectBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for direct buffers suitable for <code>O_DIRECT</code> I/O.
+ */
+public class AlignedBuffers {
+
+  private AlignedBuffers() {
+  }
+
+  /**
+   * Allocates a direct buffer of <code>capacity</code> bytes whose address is
+   * a multiple of <code>alignment</code>, a power of two.
+   */
+  public static ByteBuffer allocate(int capacity, int alignment) {
+    if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+      throw new IllegalArgumentException("Alignment must be a power of two: " + alignment);
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + alignment - 1);
+    int pad = (int) ((alignment - (address(buffer) & (alignment - 1))) & (alignment - 1));
+    buffer.position(pad);
+    buffer.limit(pad + capacity);
+    return buffer.slice();
+  }
+
+  /**
+   * Splits <code>buffer</code> into <code>count</code> consecutive direct
+   * buffers of <code>size</code> bytes each.
+   */
+  public static ByteBuffer[] slice(ByteBuffer buffer, int size, int count) {
+    ByteBuffer[] slices = new ByteBuffer[count];
+    ByteBuffer dup = buffer.duplicate();
+    for (int i = 0; i < count; i++) {
+      dup.limit(i * size + size);
+      dup.position(i * size);
+      slices[i] = dup.slice();
+    }
+    return slices;
+  }
+
+  /**
+   * Returns the native address of the first byte of a direct buffer.
+   */
+  public static long address(ByteBuffer buffer) {
+    if (!(buffer instanceof DirectBuffer)) {
+      throw new IllegalArgumentException("Not a direct buffer");
+    }
+    return ((DirectBuffer) buffer).address();
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.utils;
+
+import jnative.JNativeCodeLoader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC32C (Castagnoli) checksums over native memory, computed with the SSE4.2
+ * <code>crc32</code> instruction when the CPU has it and with a slicing-by-8
+ * table otherwise. Values are compatible with
+ * <code>java.util.zip.CRC32C</code>.
+ */
+public class CRC32C {
+
+  private static final Log LOG = LogFactory.getLog(CRC32C.class.getName());
+
+  static {
+    if (JNativeCodeLoader.isNativeCodeLoaded()) {
+      LOG.info("Native crc32c is " + (isHardwareAccelerated() ? "" : "not ")
+          + "hardware accelerated");
+    } else {
+      LOG.error("Cannot load native crc32c library without jnative");
+    }
+  }
+
+  private CRC32C() {
+  }
+
+  /**
+   * Returns the checksum of <code>length</code> bytes at <code>address</code>.
+   */
+  public static int compute(long address, int length) {
+    return update(0, address, length);
+  }
+
+  /**
+   * Returns the checksum of the remaining bytes of a direct buffer, leaving
+   * its position unchanged.
+   */
+  public static int compute(ByteBuffer buffer) {
+    return compute(AlignedBuffers.address(buffer) + buffer.position(), buffer.remaining());
+  }
+
+  /**
+   * Continues the checksum <code>crc</code> over <code>length</code> more
+   * bytes at <code>address</code>.
+   */
+  public static native int update(int crc, long address, int length);
+
+  public static native boolean isHardwareAccelerated();
+
+  /**
+   * Continues a checksum with the slicing-by-8 table, whatever the CPU.
+   */
+  static native int updateTable(int crc, long address, int length);
+}
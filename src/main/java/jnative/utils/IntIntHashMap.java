@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.utils;
+
+/**
+ * An open-addressing <code>int -> int</code> hash map whose entries live in
+ * native memory.
+ * <p>
+ * The table is sized once at construction time and never grows, so
+ * {@link #put}, {@link #get} and {@link #remove} never allocate. Each slot
+ * takes 8 bytes; collisions are resolved by linear probing and removals use
+ * backward shifting, so no tombstones are left behind. Key <code>0</code> marks
+ * an empty slot and is kept aside in a field.
+ * <p>
+ * This class is not thread safe.
+ */
+public class IntIntHashMap {
+
+  private static final int ENTRY_SIZE = 8;
+  private static final int VALUE_OFFSET = 4;
+
+  private final NativeObject table;
+  private final int mask;
+  private final int maxSize;
+  private final int noEntryValue;
+
+  private int size;
+  private boolean hasZeroKey;
+  private int zeroKeyValue;
+
+  /**
+   * Creates a map able to hold <code>maxSize</code> entries.
+   *
+   * @param maxSize      the maximum number of entries
+   * @param noEntryValue the value returned for absent keys
+   */
+  public IntIntHashMap(int maxSize, int noEntryValue) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    int capacity = tableSize(maxSize);
+    this.table = new NativeObject(capacity * ENTRY_SIZE, false);
+    this.mask = capacity - 1;
+    this.maxSize = maxSize;
+    this.noEntryValue = noEntryValue;
+    clear();
+  }
+
+  /**
+   * Returns the table size for the given number of entries: a power of two
+   * that keeps the load factor at or below one half.
+   */
+  static int tableSize(int maxSize) {
+    int capacity = Integer.highestOneBit(Math.max(maxSize, 2) * 2 - 1) << 1;
+    if (capacity <= 0 || capacity > (1 << 26)) {
+      throw new IllegalArgumentException("maxSize too large: " + maxSize);
+    }
+    return capacity;
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private int offset(int slot) {
+    return slot * ENTRY_SIZE;
+  }
+
+  /**
+   * Returns the slot holding <code>key</code>, or the empty slot where it
+   * would be inserted.
+   */
+  private int find(int key) {
+    int slot = hash(key) & mask;
+    while (true) {
+      int k = table.getInt(offset(slot));
+      if (k == key || k == 0) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public int get(int key) {
+    if (key == 0) {
+      return hasZeroKey ? zeroKeyValue : noEntryValue;
+    }
+    int off = offset(find(key));
+    return table.getInt(off) == 0 ? noEntryValue : table.getInt(off + VALUE_OFFSET);
+  }
+
+  public boolean containsKey(int key) {
+    if (key == 0) {
+      return hasZeroKey;
+    }
+    return table.getInt(offset(find(key))) != 0;
+  }
+
+  /**
+   * Associates <code>value</code> with <code>key</code>.
+   *
+   * @return the previous value, or the no-entry value if there was none
+   * @throws IllegalStateException if the map already holds
+   *         <code>maxSize</code> entries and <code>key</code> is new
+   */
+  public int put(int key, int value) {
+    if (key == 0) {
+      int previous = hasZeroKey ? zeroKeyValue : noEntryValue;
+      if (!hasZeroKey) {
+        ensureRoom();
+        hasZeroKey = true;
+        size++;
+      }
+      zeroKeyValue = value;
+      return previous;
+    }
+    int off = offset(find(key));
+    if (table.getInt(off) != 0) {
+      int previous = table.getInt(off + VALUE_OFFSET);
+      table.putInt(off + VALUE_OFFSET, value);
+      return previous;
+    }
+    ensureRoom();
+    table.putInt(off, key);
+    table.putInt(off + VALUE_OFFSET, value);
+    size++;
+    return noEntryValue;
+  }
+
+  /**
+   * Removes the mapping for <code>key</code>.
+   *
+   * @return the removed value, or the no-entry value if there was none
+   */
+  public int remove(int key) {
+    if (key == 0) {
+      if (!hasZeroKey) {
+        return noEntryValue;
+      }
+      hasZeroKey = false;
+      size--;
+      return zeroKeyValue;
+    }
+    int slot = find(key);
+    int off = offset(slot);
+    if (table.getInt(off) == 0) {
+      return noEntryValue;
+    }
+    int previous = table.getInt(off + VALUE_OFFSET);
+    shiftBack(slot);
+    size--;
+    return previous;
+  }
+
+  /**
+   * Closes the gap at <code>hole</code> by moving back any following entries
+   * of the same probe run that would otherwise become unreachable.
+   */
+  private void shiftBack(int hole) {
+    int slot = hole;
+    while (true) {
+      slot = (slot + 1) & mask;
+      int k = table.getInt(offset(slot));
+      if (k == 0) {
+        break;
+      }
+      int home = hash(k) & mask;
+      // the entry stays put if its home lies cyclically in (hole, slot]
+      boolean stays = hole <= slot
+          ? hole < home && home <= slot
+          : hole < home || home <= slot;
+      if (!stays) {
+        table.putInt(offset(hole), k);
+        table.putInt(offset(hole) + VALUE_OFFSET,
+            table.getInt(offset(slot) + VALUE_OFFSET));
+        hole = slot;
+      }
+    }
+    table.putInt(offset(hole), 0);
+  }
+
+  private void ensureRoom() {
+    if (size >= maxSize) {
+      throw new IllegalStateException("Map is full (" + maxSize + " entries)");
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  public int noEntryValue() {
+    return noEntryValue;
+  }
+
+  /**
+   * Returns the number of native bytes held by this map.
+   */
+  public long nativeSize() {
+    return (long) (mask + 1) * ENTRY_SIZE;
+  }
+
+  public void clear() {
+    JNativeUnsafe.getUnsafe().setMemory(table.address(), nativeSize(), (byte) 0);
+    hasZeroKey = false;
+    size = 0;
+  }
+
+  /**
+   * Frees the native memory of this map. The map must not be used afterwards.
+   */
+  public void free() {
+    table.free();
+  }
+}
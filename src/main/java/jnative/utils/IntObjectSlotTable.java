@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.utils;
+
+/**
+ * An <code>int</code>-keyed table of objects, e.g. file descriptors to their
+ * handlers.
+ * <p>
+ * Keys are mapped to slot numbers by an off-heap {@link IntIntHashMap}; the
+ * objects themselves sit in a fixed array indexed by slot. A slot number stays
+ * valid until its key is removed, so it can be handed to native code (as
+ * epoll user data or an AIO request tag) and resolved back with
+ * {@link #getSlot(int)} without hashing. Neither {@link #put} nor
+ * {@link #get} allocates.
+ * <p>
+ * This class is not thread safe.
+ */
+public class IntObjectSlotTable<V> {
+
+  private final IntIntHashMap index;
+  private final Object[] values;
+  private final int[] keys;
+  private final int[] freeSlots;
+  private int freeCount;
+
+  public IntObjectSlotTable(int maxSize) {
+    this.index = new IntIntHashMap(maxSize, -1);
+    this.values = new Object[maxSize];
+    this.keys = new int[maxSize];
+    this.freeSlots = new int[maxSize];
+    for (int i = 0; i < maxSize; i++) {
+      freeSlots[i] = maxSize - 1 - i;
+    }
+    this.freeCount = maxSize;
+  }
+
+  /**
+   * Associates <code>value</code> with <code>key</code>, reusing the key's
+   * slot if it is already present.
+   *
+   * @return the slot number of <code>key</code>
+   * @throws IllegalStateException if the table is full
+   */
+  public int put(int key, V value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+    int slot = index.get(key);
+    if (slot < 0) {
+      if (freeCount == 0) {
+        throw new IllegalStateException("Slot table is full (" + values.length + " entries)");
+      }
+      slot = freeSlots[--freeCount];
+      index.put(key, slot);
+      keys[slot] = key;
+    }
+    values[slot] = value;
+    return slot;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    int slot = index.get(key);
+    return slot < 0 ? null : (V) values[slot];
+  }
+
+  /**
+   * Returns the slot number of <code>key</code>, or -1 if absent.
+   */
+  public int slotOf(int key) {
+    return index.get(key);
+  }
+
+  /**
+   * Returns the object in <code>slot</code>, or null if the slot is free.
+   */
+  @SuppressWarnings("unchecked")
+  public V getSlot(int slot) {
+    return (V) values[slot];
+  }
+
+  /**
+   * Returns the key occupying <code>slot</code>. Only meaningful while the
+   * slot is in use.
+   */
+  public int keyAt(int slot) {
+    return keys[slot];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+    int slot = index.remove(key);
+    if (slot < 0) {
+      return null;
+    }
+    V previous = (V) values[slot];
+    values[slot] = null;
+    freeSlots[freeCount++] = slot;
+    return previous;
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  public int maxSize() {
+    return values.length;
+  }
+
+  public void clear() {
+    index.clear();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = null;
+      freeSlots[i] = values.length - 1 - i;
+    }
+    freeCount = values.length;
+  }
+
+  /**
+   * Frees the native memory of this table. The table must not be used
+   * afterwards.
+   */
+  public void free() {
+    index.free();
+  }
+}
@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jnative.utils;
+
+/**
+ * An open-addressing <code>long -> long</code> hash map whose entries live in
+ * native memory.
+ * <p>
+ * The table is sized once at construction time and never grows, so
+ * {@link #put}, {@link #get} and {@link #remove} never allocate. Each slot
+ * takes 16 bytes; collisions are resolved by linear probing and removals use
+ * backward shifting, so no tombstones are left behind. Key <code>0</code> marks
+ * an empty slot and is kept aside in a field.
+ * <p>
+ * This class is not thread safe.
+ */
+public class LongLongHashMap {
+
+  private static final int ENTRY_SIZE = 16;
+  private static final int VALUE_OFFSET = 8;
+
+  private final NativeObject table;
+  private final int mask;
+  private final int maxSize;
+  private final long noEntryValue;
+
+  private int size;
+  private boolean hasZeroKey;
+  private long zeroKeyValue;
+
+  /**
+   * Creates a map able to hold <code>maxSize</code> entries.
+   *
+   * @param maxSize      the maximum number of entries
+   * @param noEntryValue the value returned for absent keys
+   */
+  public LongLongHashMap(int maxSize, long noEntryValue) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    int capacity = tableSize(maxSize);
+    this.table = new NativeObject(capacity * ENTRY_SIZE, false);
+    this.mask = capacity - 1;
+    this.maxSize = maxSize;
+    this.noEntryValue = noEntryValue;
+    clear();
+  }
+
+  /**
+   * Returns the table size for the given number of entries: a power of two
+   * that keeps the load factor at or below one half.
+   */
+  static int tableSize(int maxSize) {
+    int capacity = Integer.highestOneBit(Math.max(maxSize, 2) * 2 - 1) << 1;
+    if (capacity <= 0 || capacity > (1 << 26)) {
+      throw new IllegalArgumentException("maxSize too large: " + maxSize);
+    }
+    return capacity;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int offset(int slot) {
+    return slot * ENTRY_SIZE;
+  }
+
+  /**
+   * Returns the slot holding <code>key</code>, or the empty slot where it
+   * would be inserted.
+   */
+  private int find(long key) {
+    int slot = hash(key) & mask;
+    while (true) {
+      long k = table.getLong(offset(slot));
+      if (k == key || k == 0) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public long get(long key) {
+    if (key == 0) {
+      return hasZeroKey ? zeroKeyValue : noEntryValue;
+    }
+    int off = offset(find(key));
+    return table.getLong(off) == 0 ? noEntryValue : table.getLong(off + VALUE_OFFSET);
+  }
+
+  public boolean containsKey(long key) {
+    if (key == 0) {
+      return hasZeroKey;
+    }
+    return table.getLong(offset(find(key))) != 0;
+  }
+
+  /**
+   * Associates <code>value</code> with <code>key</code>.
+   *
+   * @return the previous value, or the no-entry value if there was none
+   * @throws IllegalStateException if the map already holds
+   *         <code>maxSize</code> entries and <code>key</code> is new
+   */
+  public long put(long key, long value) {
+    if (key == 0) {
+      long previous = hasZeroKey ? zeroKeyValue : noEntryValue;
+      if (!hasZeroKey) {
+        ensureRoom();
+        hasZeroKey = true;
+        size++;
+      }
+      zeroKeyValue = value;
+      return previous;
+    }
+    int off = offset(find(key));
+    if (table.getLong(off) != 0) {
+      long previous = table.getLong(off + VALUE_OFFSET);
+      table.putLong(off + VALUE_OFFSET, value);
+      return previous;
+    }
+    ensureRoom();
+    table.putLong(off, key);
+    table.putLong(off + VALUE_OFFSET, value);
+    size++;
+    return noEntryValue;
+  }
+
+  /**
+   * Removes the mapping for <code>key</code>.
+   *
+   * @return the removed value, or the no-entry value if there was none
+   */
+  public long remove(long key) {
+    if (key == 0) {
+      if (!hasZeroKey) {
+        return noEntryValue;
+      }
+      hasZeroKey = false;
+      size--;
+      return zeroKeyValue;
+    }
+    int slot = find(key);
+    int off = offset(slot);
+    if (table.getLong(off) == 0) {
+      return noEntryValue;
+    }
+    long previous = table.getLong(off + VALUE_OFFSET);
+    shiftBack(slot);
+    size--;
+    return previous;
+  }
+
+  /**
+   * Closes the gap at <code>hole</code> by moving back any following entries
+   * of the same probe run that would otherwise become unreachable.
+   */
+  private void shiftBack(int hole) {
+    int slot = hole;
+    while (true) {
+      slot = (slot + 1) & mask;
+      long k = table.getLong(offset(slot));
+      if (k == 0) {
+        break;
+      }
+      int home = hash(k) & mask;
+      // the entry stays put if its home lies cyclically in (hole, slot]
+      boolean stays = hole <= slot
+          ? hole < home && home <= slot
+          : hole < home || home <= slot;
+      if (!stays) {
+        table.putLong(offset(hole), k);
+        table.putLong(offset(hole) + VALUE_OFFSET,
+            table.getLong(offset(slot) + VALUE_OFFSET));
+        hole = slot;
+      }
+    }
+    table.putLong(offset(hole), 0L);
+  }
+
+  private void ensureRoom() {
+    if (size >= maxSize) {
+      throw new IllegalStateException("Map is full (" + maxSize + " entries)");
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  public long noEntryValue() {
+    return noEntryValue;
+  }
+
+  /**
+   * Returns the number of native bytes held by this map.
+   */
+  public long nativeSize() {
+    return (long) (mask + 1) * ENTRY_SIZE;
+  }
+
+  public void clear() {
+    JNativeUnsafe.getUnsafe().setMemory(table.address(), nativeSize(), (byte) 0);
+    hasZeroKey = false;
+    size = 0;
+  }
+
+  /**
+   * Frees the native memory of this map. The map must not be used afterwards.
+   */
+  public void free() {
+    table.free();
+  }
+}
@@ -57,7 +57,7 @@ public class NativeObject {
     this.address = address + offset;
   }
 
-  public NativeObject(int size, boolean pageAligned) {
+  public NativeObject(long size, boolean pageAligned) {
     if (!pageAligned) {
       this.allocationAddress = unsafe.allocateMemory(size);
       this.address = this.allocationAddress;
@@ -20,6 +20,7 @@
 #define JNATIVE_H_
 
 #include <jni.h>
+#include <string.h>
 
 
 /* A helper macro to 'throw' a java exception. */
@@ -32,5 +33,20 @@
 	} \
   }
 
+/* 'Throws' a jnative.io.NativeIOException for the given errno. */
+static inline void throw_errno(JNIEnv *env, int errnum) {
+  jclass ecls = (*env)->FindClass(env, "jnative/io/NativeIOException");
+  if (ecls) {
+    jmethodID ctor = (*env)->GetMethodID(env, ecls, "<init>", "(Ljava/lang/String;I)V");
+    jstring message = (*env)->NewStringUTF(env, strerror(errnum));
+    if (ctor && message) {
+      jobject e = (*env)->NewObject(env, ecls, ctor, message, (jint) errnum);
+      if (e) {
+        (*env)->Throw(env, (jthrowable) e);
+      }
+    }
+    (*env)->DeleteLocalRef(env, ecls);
+  }
+}
 
 #endif /* JNATIVE_H_ */
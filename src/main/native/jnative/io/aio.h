@@ -18,8 +18,17 @@
 #ifndef JNATIVE_IO_AIO_H
 #define JNATIVE_IO_AIO_H
 
+#include <errno.h>
 #include <fcntl.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
 #include <unistd.h>
+#include <sys/ioctl.h>
+#include <sys/stat.h>
+#include <linux/fs.h>
 #include <libaio.h>
 
 #include "jnative.h"
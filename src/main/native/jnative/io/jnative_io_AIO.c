@@ -22,7 +22,17 @@
 JNIEXPORT jint JNICALL
 Java_jnative_io_AIO_open0(JNIEnv *env, jclass clazz, jstring name, jint mode) {
   const char *fname = (*env)->GetStringUTFChars(env, name, 0);
-  int fd = open(fname, mode);
+  int fd;
+  if (fname == NULL) {
+    return (jint) -1;
+  }
+  fd = open(fname, mode, 0666);
+  if (fd < 0) {
+    char message[512];
+    snprintf(message, sizeof(message), "%s (%s)", fname, strerror(errno));
+    THROW(env, "java/io/FileNotFoundException", message);
+  }
+  (*env)->ReleaseStringUTFChars(env, name, fname);
   return (jint) fd;
 }
 
@@ -32,11 +42,130 @@ Java_jnative_io_AIO_close(JNIEnv *env, jclass clazz, jint fd) {
 }
 
 
+JNIEXPORT void JNICALL
+Java_jnative_io_AIO_fdatasync(JNIEnv *env, jclass clazz, jint fd) {
+  if (fdatasync(fd) < 0) {
+    throw_errno(env, errno);
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_AIO_fallocate0(JNIEnv *env, jclass clazz, jint fd, jint mode,
+    jlong offset, jlong len) {
+  if (fallocate(fd, mode, (off_t) offset, (off_t) len) < 0) {
+    throw_errno(env, errno);
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_AIO_posixFadvise(JNIEnv *env, jclass clazz, jint fd,
+    jlong offset, jlong len, jint advice) {
+  /* returns the error number instead of setting errno */
+  int rc = posix_fadvise(fd, (off_t) offset, (off_t) len, advice);
+  if (rc != 0) {
+    throw_errno(env, rc);
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_AIO_readahead(JNIEnv *env, jclass clazz, jint fd,
+    jlong offset, jlong count) {
+  if (readahead(fd, (off64_t) offset, (size_t) count) < 0) {
+    throw_errno(env, errno);
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_AIO_syncFileRange(JNIEnv *env, jclass clazz, jint fd,
+    jlong offset, jlong nbytes, jint flags) {
+  if (sync_file_range(fd, (off64_t) offset, (off64_t) nbytes, (unsigned int) flags) < 0) {
+    throw_errno(env, errno);
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_AIO_ftruncate(JNIEnv *env, jclass clazz, jint fd, jlong length) {
+  if (ftruncate(fd, (off_t) length) < 0) {
+    throw_errno(env, errno);
+  }
+}
+
+JNIEXPORT jlong JNICALL
+Java_jnative_io_AIO_size(JNIEnv *env, jclass clazz, jint fd) {
+  struct stat st;
+  if (fstat(fd, &st) < 0) {
+    throw_errno(env, errno);
+    return (jlong) 0;
+  }
+  return (jlong) st.st_size;
+}
+
+JNIEXPORT jlong JNICALL
+Java_jnative_io_AIO_copyFileRange(JNIEnv *env, jclass clazz, jint fd_in,
+    jlong offset_in, jint fd_out, jlong offset_out, jlong len) {
+  off64_t off_in = (off64_t) offset_in;
+  off64_t off_out = (off64_t) offset_out;
+  ssize_t rc = copy_file_range(fd_in, &off_in, fd_out, &off_out, (size_t) len, 0);
+  if (rc < 0) {
+    throw_errno(env, errno);
+    return (jlong) 0;
+  }
+  return (jlong) rc;
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_AIO_logicalBlockSize(JNIEnv *env, jclass clazz, jint fd) {
+  struct stat st;
+  int size;
+
+  if (fstat(fd, &st) < 0) {
+    throw_errno(env, errno);
+    return (jint) 0;
+  }
+  if (S_ISBLK(st.st_mode) && ioctl(fd, BLKSSZGET, &size) == 0) {
+    return (jint) size;
+  }
+#ifdef STATX_DIOALIGN
+  {
+    struct statx stx;
+    if (statx(fd, "", AT_EMPTY_PATH, STATX_DIOALIGN, &stx) == 0
+        && (stx.stx_mask & STATX_DIOALIGN) && stx.stx_dio_offset_align > 0) {
+      size = stx.stx_dio_offset_align;
+      if (stx.stx_dio_mem_align > (unsigned) size) {
+        size = stx.stx_dio_mem_align;
+      }
+      return (jint) size;
+    }
+  }
+#endif
+  return (jint) st.st_blksize;
+}
+
 JNIEXPORT jint JNICALL
 Java_jnative_io_AIO_sizeOfIocb(JNIEnv *env, jclass clazz) {
   return (jint) sizeof(struct iocb);
 }
 
+JNIEXPORT jint JNICALL
+Java_jnative_io_AIO_sizeOfIoEvent(JNIEnv *env, jclass clazz) {
+  return (jint) sizeof(struct io_event);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_AIO_ioEventDataOffset(JNIEnv *env, jclass clazz) {
+  return (jint) offsetof(struct io_event, data);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_AIO_ioEventResOffset(JNIEnv *env, jclass clazz) {
+  return (jint) offsetof(struct io_event, res);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_AIO_ioEventObjOffset(JNIEnv *env, jclass clazz) {
+  return (jint) offsetof(struct io_event, obj);
+}
+
 JNIEXPORT jlong JNICALL
 Java_jnative_io_AIO_setup(JNIEnv *env, jclass clazz) {
   io_context_t ctx = 0;
@@ -50,10 +179,13 @@ Java_jnative_io_AIO_setup(JNIEnv *env, jclass clazz) {
 
 JNIEXPORT void JNICALL
 Java_jnative_io_AIO_prepare(JNIEnv *env, jclass clzz, jlong iocb_adr,
-    jint command, jint fd, jlong offset, jlong buf_adr, jint len, jint eventfd) {
+    jint command, jint fd, jlong offset, jlong buf_adr, jint len, jint eventfd,
+    jlong data) {
   struct iocb *iocb = (void *)iocb_adr;
   void* buffer = (void *) buf_adr;
 
+  memset(iocb, 0, sizeof(struct iocb));
+  iocb->data = (void *) (intptr_t) data;
   iocb->aio_fildes = fd;
   iocb->aio_lio_opcode = command;
   iocb->aio_reqprio = 0;
@@ -67,19 +199,42 @@ Java_jnative_io_AIO_prepare(JNIEnv *env, jclass clzz, jlong iocb_adr,
   }
 }
 
-JNIEXPORT void JNICALL
+JNIEXPORT jlong JNICALL
 Java_jnative_io_AIO_submit0(JNIEnv *env, jclass clazz, jlong context, jlong nr, jlong iocbs_adr) {
   io_context_t ctx = (void *) context;
   struct iocb **iocbs = (void *)iocbs_adr;
-  if(io_submit(ctx, (long)nr, iocbs) < 0) {
-    THROW(env, "java/lang/InternalError", "Error when submitting IO");
+  int rc = io_submit(ctx, (long)nr, iocbs);
+  if (rc < 0) {
+    /* libaio returns the negated errno */
+    throw_errno(env, -rc);
+    return (jlong) 0;
   }
+  return (jlong) rc;
 }
 
 
-JNIEXPORT jint JNICALL Java_jnative_io_AIO_getEvents
-  (JNIEnv *env, jclass clazz, jlong ctx, jlongArray eventsAddress, jlong timeout) {
-  return (jint) 0;
+JNIEXPORT jint JNICALL
+Java_jnative_io_AIO_getEvents(JNIEnv *env, jclass clazz, jlong ctx,
+    jint min_nr, jint nr, jlong events_adr, jlong timeout) {
+  struct io_event *events = (void *) events_adr;
+  struct timespec ts;
+  struct timespec *tsp = NULL;
+  int rc;
+
+  if (timeout >= 0) {
+    ts.tv_sec = timeout / 1000;
+    ts.tv_nsec = (timeout % 1000) * 1000000;
+    tsp = &ts;
+  }
+  rc = io_getevents((io_context_t) ctx, min_nr, nr, events, tsp);
+  if (rc < 0) {
+    if (rc == -EINTR) {
+      return (jint) 0;
+    }
+    THROW(env, "java/lang/InternalError", "Error when getting IO events");
+    return (jint) 0;
+  }
+  return (jint) rc;
 }
 
 JNIEXPORT void JNICALL
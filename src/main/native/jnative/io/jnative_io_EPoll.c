@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <unistd.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/socket.h>
+
+#include "jnative.h"
+#include "jnative_io_EPoll.h"
+
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_eventSize(JNIEnv *env, jclass clazz) {
+  return (jint) sizeof(struct epoll_event);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_eventsOffset(JNIEnv *env, jclass clazz) {
+  return (jint) offsetof(struct epoll_event, events);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_dataOffset(JNIEnv *env, jclass clazz) {
+  return (jint) offsetof(struct epoll_event, data);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_eventFd(JNIEnv *env, jclass clazz) {
+  int efd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+  if (efd < 0) {
+    throw_errno(env, errno);
+  }
+  return (jint) efd;
+}
+
+JNIEXPORT jlong JNICALL
+Java_jnative_io_EPoll_eventFdRead(JNIEnv *env, jclass clazz, jint efd) {
+  eventfd_t value;
+  if (eventfd_read(efd, &value) < 0) {
+    if (errno != EAGAIN) {
+      throw_errno(env, errno);
+    }
+    return (jlong) 0;
+  }
+  return (jlong) value;
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_EPoll_eventFdWrite(JNIEnv *env, jclass clazz, jint efd, jlong value) {
+  if (eventfd_write(efd, (eventfd_t) value) < 0) {
+    throw_errno(env, errno);
+  }
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_epollCreate(JNIEnv *env, jclass clazz) {
+  int epfd = epoll_create1(EPOLL_CLOEXEC);
+  if (epfd < 0) {
+    throw_errno(env, errno);
+  }
+  return (jint) epfd;
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_epollCtl(JNIEnv *env, jclass clazz, jint epfd, jint opcode,
+    jint fd, jint events) {
+  struct epoll_event event;
+
+  memset(&event, 0, sizeof(event));
+  event.events = (uint32_t) events;
+  event.data.fd = fd;
+  if (epoll_ctl(epfd, opcode, fd, &event) < 0) {
+    return (jint) errno;
+  }
+  return (jint) 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_epollWait(JNIEnv *env, jclass clazz, jint epfd,
+    jlong address, jint numfds, jint timeout) {
+  struct epoll_event *events = (void *) address;
+  int rc = epoll_wait(epfd, events, numfds, timeout);
+  if (rc < 0) {
+    if (errno == EINTR) {
+      return (jint) 0;
+    }
+    throw_errno(env, errno);
+    return (jint) 0;
+  }
+  return (jint) rc;
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_EPoll_setNonBlocking(JNIEnv *env, jclass clazz, jint fd,
+    jboolean nonblocking) {
+  int flags = fcntl(fd, F_GETFL);
+  if (flags < 0) {
+    throw_errno(env, errno);
+    return;
+  }
+  flags = nonblocking ? (flags | O_NONBLOCK) : (flags & ~O_NONBLOCK);
+  if (fcntl(fd, F_SETFL, flags) < 0) {
+    throw_errno(env, errno);
+  }
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_getFlags(JNIEnv *env, jclass clazz, jint fd) {
+  int flags = fcntl(fd, F_GETFL);
+  if (flags < 0) {
+    throw_errno(env, errno);
+    return (jint) 0;
+  }
+  return (jint) flags;
+}
+
+JNIEXPORT void JNICALL
+Java_jnative_io_EPoll_socketPair(JNIEnv *env, jclass clazz, jintArray fds) {
+  int sv[2];
+  jint values[2];
+
+  if (socketpair(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0, sv) < 0) {
+    throw_errno(env, errno);
+    return;
+  }
+  values[0] = (jint) sv[0];
+  values[1] = (jint) sv[1];
+  (*env)->SetIntArrayRegion(env, fds, 0, 2, values);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_read(JNIEnv *env, jclass clazz, jint fd, jlong address,
+    jint len) {
+  ssize_t n;
+  do {
+    n = read(fd, (void *) address, (size_t) len);
+  } while (n < 0 && errno == EINTR);
+  if (n < 0) {
+    if (errno == EAGAIN || errno == EWOULDBLOCK) {
+      return (jint) jnative_io_EPoll_UNAVAILABLE;
+    }
+    throw_errno(env, errno);
+    return (jint) 0;
+  }
+  if (n == 0 && len > 0) {
+    return (jint) jnative_io_EPoll_EOF;
+  }
+  return (jint) n;
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_io_EPoll_write(JNIEnv *env, jclass clazz, jint fd, jlong address,
+    jint len) {
+  ssize_t n;
+  do {
+    n = write(fd, (void *) address, (size_t) len);
+  } while (n < 0 && errno == EINTR);
+  if (n < 0) {
+    if (errno == EAGAIN || errno == EWOULDBLOCK) {
+      return (jint) jnative_io_EPoll_UNAVAILABLE;
+    }
+    throw_errno(env, errno);
+    return (jint) 0;
+  }
+  return (jint) n;
+}
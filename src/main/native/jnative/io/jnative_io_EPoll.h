@@ -10,11 +10,15 @@ extern "C" {
 #undef jnative_io_EPoll_EPOLLIN
 #define jnative_io_EPoll_EPOLLIN 1L
 #undef jnative_io_EPoll_EPOLLOUT
-#define jnative_io_EPoll_EPOLLOUT 2L
-#undef jnative_io_EPoll_EPOLLACCEPT
-#define jnative_io_EPoll_EPOLLACCEPT 4L
+#define jnative_io_EPoll_EPOLLOUT 4L
+#undef jnative_io_EPoll_EPOLLERR
+#define jnative_io_EPoll_EPOLLERR 8L
+#undef jnative_io_EPoll_EPOLLHUP
+#define jnative_io_EPoll_EPOLLHUP 16L
 #undef jnative_io_EPoll_EPOLLRDHUP
-#define jnative_io_EPoll_EPOLLRDHUP 8L
+#define jnative_io_EPoll_EPOLLRDHUP 8192L
+#undef jnative_io_EPoll_EPOLLACCEPT
+#define jnative_io_EPoll_EPOLLACCEPT 1L
 #undef jnative_io_EPoll_EPOLL_CTL_ADD
 #define jnative_io_EPoll_EPOLL_CTL_ADD 1L
 #undef jnative_io_EPoll_EPOLL_CTL_DEL
@@ -23,6 +27,10 @@ extern "C" {
 #define jnative_io_EPoll_EPOLL_CTL_MOD 3L
 #undef jnative_io_EPoll_EPOLLONESHOT
 #define jnative_io_EPoll_EPOLLONESHOT 1073741824L
+#undef jnative_io_EPoll_EOF
+#define jnative_io_EPoll_EOF -1L
+#undef jnative_io_EPoll_UNAVAILABLE
+#define jnative_io_EPoll_UNAVAILABLE -2L
 /*
  * Class:     jnative_io_EPoll
  * Method:    eventSize
@@ -55,6 +63,22 @@ JNIEXPORT jint JNICALL Java_jnative_io_EPoll_dataOffset
 JNIEXPORT jint JNICALL Java_jnative_io_EPoll_eventFd
   (JNIEnv *, jclass);
 
+/*
+ * Class:     jnative_io_EPoll
+ * Method:    eventFdRead
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_jnative_io_EPoll_eventFdRead
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     jnative_io_EPoll
+ * Method:    eventFdWrite
+ * Signature: (IJ)V
+ */
+JNIEXPORT void JNICALL Java_jnative_io_EPoll_eventFdWrite
+  (JNIEnv *, jclass, jint, jlong);
+
 /*
  * Class:     jnative_io_EPoll
  * Method:    epollCreate
@@ -74,9 +98,49 @@ JNIEXPORT jint JNICALL Java_jnative_io_EPoll_epollCtl
 /*
  * Class:     jnative_io_EPoll
  * Method:    epollWait
- * Signature: (IJI)I
+ * Signature: (IJII)I
  */
 JNIEXPORT jint JNICALL Java_jnative_io_EPoll_epollWait
+  (JNIEnv *, jclass, jint, jlong, jint, jint);
+
+/*
+ * Class:     jnative_io_EPoll
+ * Method:    setNonBlocking
+ * Signature: (IZ)V
+ */
+JNIEXPORT void JNICALL Java_jnative_io_EPoll_setNonBlocking
+  (JNIEnv *, jclass, jint, jboolean);
+
+/*
+ * Class:     jnative_io_EPoll
+ * Method:    getFlags
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_jnative_io_EPoll_getFlags
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     jnative_io_EPoll
+ * Method:    socketPair
+ * Signature: ([I)V
+ */
+JNIEXPORT void JNICALL Java_jnative_io_EPoll_socketPair
+  (JNIEnv *, jclass, jintArray);
+
+/*
+ * Class:     jnative_io_EPoll
+ * Method:    read
+ * Signature: (IJI)I
+ */
+JNIEXPORT jint JNICALL Java_jnative_io_EPoll_read
+  (JNIEnv *, jclass, jint, jlong, jint);
+
+/*
+ * Class:     jnative_io_EPoll
+ * Method:    write
+ * Signature: (IJI)I
+ */
+JNIEXPORT jint JNICALL Java_jnative_io_EPoll_write
   (JNIEnv *, jclass, jint, jlong, jint);
 
 #ifdef __cplusplus
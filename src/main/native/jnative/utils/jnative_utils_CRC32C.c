@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <string.h>
+
+#include "crc32c.h"
+
+#if defined(__x86_64__)
+#include <nmmintrin.h>
+#endif
+
+/* reversed Castagnoli polynomial */
+#define CRC32C_POLY 0x82F63B78U
+
+/* slicing-by-8 tables for the software fallback */
+static uint32_t crc32c_table[8][256];
+static int crc32c_hw = 0;
+
+__attribute__((constructor))
+static void crc32c_init(void) {
+  uint32_t i, j, crc;
+
+  for (i = 0; i < 256; i++) {
+    crc = i;
+    for (j = 0; j < 8; j++) {
+      crc = (crc >> 1) ^ (CRC32C_POLY & (0U - (crc & 1)));
+    }
+    crc32c_table[0][i] = crc;
+  }
+  for (i = 0; i < 256; i++) {
+    crc = crc32c_table[0][i];
+    for (j = 1; j < 8; j++) {
+      crc = crc32c_table[0][crc & 0xff] ^ (crc >> 8);
+      crc32c_table[j][i] = crc;
+    }
+  }
+#if defined(__x86_64__)
+  __builtin_cpu_init();
+  crc32c_hw = __builtin_cpu_supports("sse4.2");
+#endif
+}
+
+static uint32_t crc32c_sw(uint32_t crc, const uint8_t *p, size_t len) {
+  uint64_t word;
+
+  while (len > 0 && ((uintptr_t) p & 7) != 0) {
+    crc = crc32c_table[0][(crc ^ *p++) & 0xff] ^ (crc >> 8);
+    len--;
+  }
+  while (len >= 8) {
+    /* the tables assume little endian words */
+    memcpy(&word, p, 8);
+#if __BYTE_ORDER__ == __ORDER_BIG_ENDIAN__
+    word = __builtin_bswap64(word);
+#endif
+    word ^= crc;
+    crc = crc32c_table[7][word & 0xff]
+        ^ crc32c_table[6][(word >> 8) & 0xff]
+        ^ crc32c_table[5][(word >> 16) & 0xff]
+        ^ crc32c_table[4][(word >> 24) & 0xff]
+        ^ crc32c_table[3][(word >> 32) & 0xff]
+        ^ crc32c_table[2][(word >> 40) & 0xff]
+        ^ crc32c_table[1][(word >> 48) & 0xff]
+        ^ crc32c_table[0][word >> 56];
+    p += 8;
+    len -= 8;
+  }
+  while (len > 0) {
+    crc = crc32c_table[0][(crc ^ *p++) & 0xff] ^ (crc >> 8);
+    len--;
+  }
+  return crc;
+}
+
+#if defined(__x86_64__)
+__attribute__((target("sse4.2")))
+static uint32_t crc32c_sse42(uint32_t crc, const uint8_t *p, size_t len) {
+  uint64_t crc64;
+  uint64_t word;
+
+  while (len > 0 && ((uintptr_t) p & 7) != 0) {
+    crc = _mm_crc32_u8(crc, *p++);
+    len--;
+  }
+  crc64 = crc;
+  while (len >= 8) {
+    memcpy(&word, p, 8);
+    crc64 = _mm_crc32_u64(crc64, word);
+    p += 8;
+    len -= 8;
+  }
+  crc = (uint32_t) crc64;
+  while (len > 0) {
+    crc = _mm_crc32_u8(crc, *p++);
+    len--;
+  }
+  return crc;
+}
+#endif
+
+JNIEXPORT jint JNICALL
+Java_jnative_utils_CRC32C_update(JNIEnv *env, jclass clazz, jint crc,
+    jlong address, jint len) {
+  const uint8_t *p = (const uint8_t *) (intptr_t) address;
+  uint32_t c = ~(uint32_t) crc;
+
+#if defined(__x86_64__)
+  if (crc32c_hw) {
+    return (jint) ~crc32c_sse42(c, p, (size_t) len);
+  }
+#endif
+  return (jint) ~crc32c_sw(c, p, (size_t) len);
+}
+
+JNIEXPORT jint JNICALL
+Java_jnative_utils_CRC32C_updateTable(JNIEnv *env, jclass clazz, jint crc,
+    jlong address, jint len) {
+  const uint8_t *p = (const uint8_t *) (intptr_t) address;
+
+  return (jint) ~crc32c_sw(~(uint32_t) crc, p, (size_t) len);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_jnative_utils_CRC32C_isHardwareAccelerated(JNIEnv *env, jclass clazz) {
+  return crc32c_hw ? JNI_TRUE : JNI_FALSE;
+}
@@ -17,15 +17,19 @@
  */
 package jnative.io;
 
+import jnative.utils.AlignedBuffers;
 import org.junit.Test;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
 
 public class TestAIO {
 
   @Test
-  public void testWrite() throws FileNotFoundException {
+  public void testWrite() throws IOException {
     int fd = AIO.open(".test", AIO.O_CREAT | AIO.O_RDWR | AIO.O_DIRECT);
     AIO aio = new AIO(64);
     byte[] data = "Hello AIO!\n".getBytes();
@@ -38,4 +42,49 @@ public class TestAIO {
     aio.submit();
 
   }
+
+  @Test
+  public void testVerifiedReadSharingTagWithPlainRead() throws IOException {
+    int fd = AIO.open(".test-verify", AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR | AIO.O_DIRECT);
+    AIO aio = new AIO(8);
+    try {
+      ByteBuffer blocks = AlignedBuffers.allocate(3 * 4096, 4096);
+      long address = AlignedBuffers.address(blocks);
+      for (int i = 0; i < blocks.capacity(); i++) {
+        blocks.put(i, (byte) i);
+      }
+      for (int b = 0; b < 3; b++) {
+        aio.prepareWrite(fd, b * 4096L, address + b * 4096L, 4096, b, true);
+      }
+      // corrupt the last block after its trailer was computed
+      blocks.put(2 * 4096, (byte) ~blocks.get(2 * 4096));
+      aio.submit();
+      awaitAll(aio, 3);
+
+      ByteBuffer dst = AlignedBuffers.allocate(3 * 4096, 4096);
+      long dstAddress = AlignedBuffers.address(dst);
+      aio.prepareRead(fd, 0, dstAddress, 2 * 4096, 7);
+      aio.prepareRead(fd, 2 * 4096, dstAddress + 2 * 4096, 4096, 7, true);
+      aio.submit();
+      long[] results = awaitAll(aio, 2);
+      Arrays.sort(results);
+      assertEquals(AIO.CHECKSUM_MISMATCH, results[0]);
+      assertEquals(2 * 4096, results[1]);
+    } finally {
+      aio.close();
+      AIO.close(fd);
+    }
+  }
+
+  private static long[] awaitAll(AIO aio, int nr) {
+    long[] results = new long[nr];
+    int done = 0;
+    while (done < nr) {
+      int n = aio.poll(-1);
+      for (int i = 0; i < n; i++) {
+        results[done++] = aio.eventResult(i);
+      }
+    }
+    return results;
+  }
 }
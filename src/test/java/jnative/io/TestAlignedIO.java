@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestAlignedIO {
+
+  @Test
+  public void testUnalignedRecords() throws IOException {
+    int fd = AIO.open(".test-aligned", AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR | AIO.O_DIRECT);
+    AlignedIO io = new AlignedIO(64 * 1024, 4);
+    try {
+      byte[] data = "Hello AIO!\n".getBytes();
+      for (int i = 0; i < 64; i++) {
+        io.stageWrite(fd, data.length * i, ByteBuffer.wrap(data));
+      }
+      io.flushWrites();
+      // a single record straddling a block boundary
+      io.write(fd, 4090, ByteBuffer.wrap(data));
+
+      ByteBuffer dst = ByteBuffer.allocate(data.length);
+      assertEquals(data.length, io.read(fd, data.length * 17, dst));
+      assertEquals(ByteBuffer.wrap(data), dst.flip());
+
+      dst.clear();
+      assertEquals(data.length, io.read(fd, 4090, dst));
+      assertEquals(ByteBuffer.wrap(data), dst.flip());
+    } finally {
+      io.close();
+      AIO.close(fd);
+    }
+  }
+
+  @Test
+  public void testContiguousRecordsBeyondOneBuffer() throws IOException {
+    int fd = AIO.open(".test-aligned-runs", AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR | AIO.O_DIRECT);
+    AlignedIO io = new AlignedIO(64 * 1024, 4);
+    try {
+      // about 77K of 11 byte records, more than one 64K run
+      int records = 7000;
+      for (int i = 0; i < records; i++) {
+        io.stageWrite(fd, 11L * i, ByteBuffer.wrap(record(i)));
+      }
+      io.flushWrites();
+
+      ByteBuffer dst = ByteBuffer.allocate(11);
+      for (int i = 0; i < records; i++) {
+        dst.clear();
+        assertEquals(11, io.read(fd, 11L * i, dst));
+        assertEquals("record " + i, ByteBuffer.wrap(record(i)), dst.flip());
+      }
+      dst.clear();
+      assertEquals(-1, io.read(fd, 11L * records, dst));
+    } finally {
+      io.close();
+      AIO.close(fd);
+    }
+  }
+
+  @Test
+  public void testOverlapAcrossSplitRun() throws IOException {
+    int fd = AIO.open(".test-aligned-split", AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR | AIO.O_DIRECT);
+    AlignedIO io = new AlignedIO(64 * 1024, 4);
+    try {
+      // the second write is split at the end of the first run, the third
+      // sorts after it but starts before that boundary
+      byte[] expected = new byte[70000];
+      stage(io, fd, expected, 0, 65000, (byte) 'a');
+      stage(io, fd, expected, 64600, 70000, (byte) 'b');
+      stage(io, fd, expected, 64800, 64900, (byte) 'c');
+      io.flushWrites();
+
+      ByteBuffer dst = ByteBuffer.allocate(expected.length + 1);
+      assertEquals(expected.length, io.read(fd, 0, dst));
+      assertEquals(ByteBuffer.wrap(expected), dst.flip());
+    } finally {
+      io.close();
+      AIO.close(fd);
+    }
+  }
+
+  @Test
+  public void testMoreUncoveredRangesThanOneBatch() throws IOException {
+    int fd = AIO.open(".test-aligned-batch", AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR | AIO.O_DIRECT);
+    AlignedIO io = new AlignedIO(64 * 1024, 4);
+    try {
+      // each run has a partial head and a partial tail block to read
+      int writes = 200;
+      int stride = 128 * 1024;
+      byte[] data = new byte[12088];
+      for (int k = 0; k < writes; k++) {
+        Arrays.fill(data, (byte) k);
+        io.stageWrite(fd, (long) k * stride + 100, ByteBuffer.wrap(data.clone()));
+      }
+      io.flushWrites();
+
+      ByteBuffer dst = ByteBuffer.allocate(data.length);
+      for (int k = 0; k < writes; k++) {
+        dst.clear();
+        assertEquals(data.length, io.read(fd, (long) k * stride + 100, dst));
+        Arrays.fill(data, (byte) k);
+        assertEquals("write " + k, ByteBuffer.wrap(data), dst.flip());
+      }
+    } finally {
+      io.close();
+      AIO.close(fd);
+    }
+  }
+
+  private static void stage(AlignedIO io, int fd, byte[] expected, int from, int to, byte value)
+      throws IOException {
+    byte[] data = new byte[to - from];
+    Arrays.fill(data, value);
+    Arrays.fill(expected, from, to, value);
+    io.stageWrite(fd, from, ByteBuffer.wrap(data));
+  }
+
+  private static byte[] record(int i) {
+    return String.format("%10d\n", i).getBytes();
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestBlockCache {
+
+  private static final String FILE = ".test-block-cache";
+  private static final int BLOCK = 4096;
+  private static final int BLOCKS = 256;
+
+  private int fd;
+
+  @Before
+  public void setUp() throws IOException {
+    FileOutputStream out = new FileOutputStream(FILE);
+    try {
+      byte[] block = new byte[BLOCK];
+      for (int b = 0; b < BLOCKS; b++) {
+        Arrays.fill(block, (byte) b);
+        out.write(block);
+      }
+    } finally {
+      out.close();
+    }
+    fd = AIO.open(FILE, AIO.O_RDONLY | AIO.O_DIRECT);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    AIO.close(fd);
+  }
+
+  private static void assertBlock(int expected, ByteBuffer dst) {
+    dst.flip();
+    assertEquals(BLOCK, dst.remaining());
+    while (dst.hasRemaining()) {
+      assertEquals((byte) expected, dst.get());
+    }
+  }
+
+  @Test
+  public void testCounters() throws Exception {
+    BlockCache cache = new BlockCache(16 * BLOCK, BLOCK, 1);
+    try {
+      ByteBuffer dst = ByteBuffer.allocate(BLOCK);
+      assertEquals(BLOCK, cache.read(fd, 1, 7, dst));
+      assertBlock(7, dst);
+      dst.clear();
+      assertEquals(BLOCK, cache.read(fd, 1, 7, dst));
+      assertBlock(7, dst);
+      assertEquals(1, cache.hits());
+      assertEquals(1, cache.misses());
+      assertEquals(0, cache.evictions());
+
+      for (int b = 0; b < 32; b++) {
+        dst.clear();
+        cache.read(fd, 1, b, dst);
+        assertBlock(b, dst);
+      }
+      assertTrue(cache.evictions() > 0);
+      assertEquals(34, cache.hits() + cache.misses());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testConcurrentMissesShareOneRead() throws Exception {
+    final BlockCache cache = new BlockCache(16 * BLOCK, BLOCK, 1);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[16];
+    try {
+      for (int t = 0; t < threads.length; t++) {
+        threads[t] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              ByteBuffer dst = ByteBuffer.allocate(BLOCK);
+              start.await();
+              cache.read(fd, 1, 42, dst);
+              assertBlock(42, dst);
+            } catch (Throwable e) {
+              error.compareAndSet(null, e);
+            }
+          }
+        });
+        threads[t].start();
+      }
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertNull(error.get());
+      // exactly one thread issued the read, the others waited for it or hit
+      assertEquals(1, cache.misses() - cache.sharedMisses());
+      assertEquals(threads.length, cache.hits() + cache.misses());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testScanDoesNotEvictProtectedBlocks() throws Exception {
+    BlockCache cache = new BlockCache(16 * BLOCK, BLOCK, 1);
+    try {
+      ByteBuffer dst = ByteBuffer.allocate(BLOCK);
+      // a working set referenced twice
+      for (int round = 0; round < 2; round++) {
+        for (int b = 0; b < 8; b++) {
+          dst.clear();
+          cache.read(fd, 1, b, dst);
+        }
+      }
+      // a scan much larger than the cache
+      for (int b = 100; b < 250; b++) {
+        dst.clear();
+        cache.read(fd, 1, b, dst);
+        assertBlock(b, dst);
+      }
+      long hits = cache.hits();
+      for (int b = 0; b < 8; b++) {
+        dst.clear();
+        cache.read(fd, 1, b, dst);
+        assertBlock(b, dst);
+      }
+      assertEquals(hits + 8, cache.hits());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    BlockCache cache = new BlockCache(16 * BLOCK, BLOCK, 1);
+    try {
+      ByteBuffer dst = ByteBuffer.allocate(BLOCK);
+      cache.read(fd, 1, 3, dst);
+      assertBlock(3, dst);
+
+      overwrite(3, 99);
+      cache.invalidate(1, 3);
+      dst.clear();
+      cache.read(fd, 1, 3, dst);
+      assertBlock(99, dst);
+      assertEquals(2, cache.misses());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testInvalidateWhileLoading() throws Exception {
+    BlockCache cache = new BlockCache(16 * BLOCK, BLOCK, 1);
+    try {
+      long key = BlockCache.key(1, 5);
+      BlockCache.Segment segment = cache.segmentFor(key);
+      // reserve the frame as a loading reader would, then invalidate
+      int frame = segment.acquire(key);
+      assertTrue(frame < 0);
+      frame = ~frame;
+      cache.invalidate(1, 5);
+      segment.loaded(frame, BLOCK);
+      segment.unpin(frame);
+
+      // the stale load must not be served as a hit
+      int again = segment.acquire(key);
+      assertTrue(again < 0);
+      segment.failed(~again, false);
+      segment.unpin(~again);
+      assertEquals(0, cache.hits());
+    } finally {
+      cache.close();
+    }
+  }
+
+  private static void overwrite(int block, int value) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(FILE, "rw");
+    try {
+      byte[] data = new byte[BLOCK];
+      Arrays.fill(data, (byte) value);
+      raf.seek((long) block * BLOCK);
+      raf.write(data);
+      raf.getFD().sync();
+    } finally {
+      raf.close();
+    }
+  }
+}
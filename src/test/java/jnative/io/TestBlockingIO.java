@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.io;
+
+import jnative.utils.AlignedBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestBlockingIO {
+
+  @Test
+  public void testConcurrentFileRequests() throws Exception {
+    final int fd = AIO.open(".test-blocking",
+        AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR | AIO.O_DIRECT);
+    final BlockingIO io = new BlockingIO(64);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    try {
+      Thread[] threads = new Thread[16];
+      for (int t = 0; t < threads.length; t++) {
+        final int id = t;
+        threads[t] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              ByteBuffer src = AlignedBuffers.allocate(4096, 4096);
+              while (src.hasRemaining()) {
+                src.put((byte) id);
+              }
+              src.flip();
+              assertEquals(4096, io.write(fd, id * 4096L, src));
+
+              ByteBuffer dst = AlignedBuffers.allocate(4096, 4096);
+              assertEquals(4096, io.read(fd, id * 4096L, dst));
+              dst.flip();
+              while (dst.hasRemaining()) {
+                assertEquals((byte) id, dst.get());
+              }
+            } catch (Throwable e) {
+              error.compareAndSet(null, e);
+            }
+          }
+        });
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertNull(error.get());
+    } finally {
+      io.close();
+      AIO.close(fd);
+    }
+  }
+
+  @Test
+  public void testCloseRacingFileRequests() throws Exception {
+    final int fd = AIO.open(".test-blocking-close",
+        AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR | AIO.O_DIRECT);
+    final BlockingIO io = new BlockingIO(8);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    try {
+      Thread[] threads = new Thread[8];
+      for (int t = 0; t < threads.length; t++) {
+        final int id = t;
+        threads[t] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            ByteBuffer src = AlignedBuffers.allocate(4096, 4096);
+            try {
+              while (true) {
+                src.clear();
+                io.write(fd, id * 4096L, src);
+              }
+            } catch (IOException e) {
+              // closed
+            } catch (Throwable e) {
+              error.compareAndSet(null, e);
+            }
+          }
+        });
+        threads[t].start();
+      }
+      Thread.sleep(20);
+      // must not hang on a permit taken just before it
+      io.close();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertNull(error.get());
+    } finally {
+      io.close();
+      AIO.close(fd);
+    }
+  }
+
+  @Test
+  public void testRejectsBufferedFile() throws Exception {
+    int fd = AIO.open(".test-blocking-buffered", AIO.O_CREAT | AIO.O_TRUNC | AIO.O_RDWR);
+    BlockingIO io = new BlockingIO(4);
+    try {
+      io.read(fd, 0, AlignedBuffers.allocate(4096, 4096));
+      fail("read of a file without O_DIRECT");
+    } catch (IllegalArgumentException expected) {
+    } finally {
+      io.close();
+      AIO.close(fd);
+    }
+  }
+
+  @Test
+  public void testSocketReaderParksUntilPeerWrites() throws Exception {
+    final int[] fds = new int[2];
+    EPoll.socketPair(fds);
+    BlockingIO.configure(fds[0]);
+    BlockingIO.configure(fds[1]);
+    final BlockingIO io = new BlockingIO(4);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final ByteBuffer dst = ByteBuffer.allocateDirect(16);
+    try {
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            assertEquals(5, io.read(fds[0], dst));
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      });
+      reader.start();
+      // nothing to read yet, so the reader must park
+      while (reader.getState() != Thread.State.WAITING) {
+        if (!reader.isAlive()) {
+          fail("reader returned before the peer wrote: " + error.get());
+        }
+        Thread.sleep(1);
+      }
+
+      ByteBuffer src = ByteBuffer.wrap("hello".getBytes("US-ASCII"));
+      assertEquals(5, io.write(fds[1], src));
+      reader.join();
+      assertNull(error.get());
+      dst.flip();
+      byte[] bytes = new byte[dst.remaining()];
+      dst.get(bytes);
+      assertEquals("hello", new String(bytes, "US-ASCII"));
+    } finally {
+      io.forget(fds[0]);
+      io.forget(fds[1]);
+      io.close();
+      AIO.close(fds[0]);
+      AIO.close(fds[1]);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestFileCopier {
+
+  private static final String SRC = ".test-copy-src";
+  private static final String DST = ".test-copy-dst";
+  private static final int BLOCK = 4096;
+
+  private byte[] source;
+  private int srcFd = -1;
+  private int dstFd = -1;
+
+  @Before
+  public void setUp() throws IOException {
+    // not a multiple of the block size, so the last block is partial
+    source = new byte[25 * BLOCK + 1234];
+    for (int i = 0; i < source.length; i++) {
+      source[i] = (byte) (i * 31 + i / BLOCK);
+    }
+    write(SRC, source);
+    srcFd = AIO.open(SRC, AIO.O_RDONLY);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (srcFd >= 0) {
+      AIO.close(srcFd);
+    }
+    if (dstFd >= 0) {
+      AIO.close(dstFd);
+    }
+  }
+
+  @Test
+  public void testPipelineCopy() throws Exception {
+    write(DST, new byte[0]);
+    dstFd = AIO.open(DST, AIO.O_RDWR);
+    FileCopier copier = new FileCopier(4 * BLOCK, BLOCK, 2);
+    try {
+      assertEquals(source.length, copier.copy(srcFd, 0, dstFd, 0, source.length));
+      // the padded last block is truncated away
+      assertArrayEquals("copy", source, read(DST));
+      // a zero length copy copies nothing
+      assertEquals(0, copier.copy(srcFd, 0, dstFd, 0, 0));
+    } finally {
+      copier.close();
+    }
+  }
+
+  @Test
+  public void testCopyKeepsTailOfLargerDestination() throws Exception {
+    byte[] expected = new byte[source.length + 3 * BLOCK];
+    Arrays.fill(expected, (byte) 'x');
+    write(DST, expected);
+    dstFd = AIO.open(DST, AIO.O_RDWR);
+    FileCopier copier = new FileCopier(4 * BLOCK, BLOCK, 2);
+    try {
+      assertEquals(source.length, copier.copy(srcFd, 0, dstFd, 0, source.length));
+      System.arraycopy(source, 0, expected, 0, source.length);
+      assertArrayEquals("merged tail", expected, read(DST));
+    } finally {
+      copier.close();
+    }
+  }
+
+  @Test
+  public void testFallsBackWhenKernelCopyIsRefused() throws Exception {
+    // copy_file_range refuses overlapping ranges of the same file with
+    // EINVAL; a copy within one buffer is then a single read and write
+    dstFd = AIO.open(SRC, AIO.O_RDWR);
+    FileCopier copier = new FileCopier(4 * BLOCK, BLOCK, 2);
+    copier.setUseCopyFileRange(true);
+    try {
+      assertEquals(2 * BLOCK, copier.copy(srcFd, 0, dstFd, BLOCK, 2 * BLOCK));
+      byte[] expected = source.clone();
+      System.arraycopy(source, 0, expected, BLOCK, 2 * BLOCK);
+      assertArrayEquals("moved range", expected, read(SRC));
+    } finally {
+      copier.close();
+    }
+  }
+
+  @Test
+  public void testInterruptedThrottle() throws Exception {
+    write(DST, new byte[0]);
+    dstFd = AIO.open(DST, AIO.O_RDWR);
+    FileCopier copier = new FileCopier(BLOCK, BLOCK, 4);
+    try {
+      copier.setThrottle(new FileCopier.Throttle() {
+        private int calls;
+
+        @Override
+        public void acquire(long bytes) throws InterruptedException {
+          if (++calls == 2) {
+            throw new InterruptedException();
+          }
+        }
+      });
+      try {
+        copier.copy(srcFd, 0, dstFd, 0, source.length);
+        fail("copy went past an interrupted throttle");
+      } catch (InterruptedException expected) {
+      }
+
+      // nothing of the interrupted copy is left queued
+      copier.setThrottle(null);
+      assertEquals(source.length, copier.copy(srcFd, 0, dstFd, 0, source.length));
+      assertArrayEquals("copy after interruption", source, read(DST));
+    } finally {
+      copier.close();
+    }
+  }
+
+  private static void write(String file, byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] read(String file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] data = new byte[(int) raf.length()];
+      raf.readFully(data);
+      return data;
+    } finally {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSequentialReader {
+
+  private static final String FILE = ".test-sequential";
+  private static final int BLOCK = 4096;
+  private static final int CHUNK = 4 * BLOCK;
+
+  private byte[] content;
+  private int fd;
+
+  @Before
+  public void setUp() throws IOException {
+    // ten chunks and a partial one
+    content = new byte[10 * CHUNK + 1000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i * 7 + i / CHUNK);
+    }
+    FileOutputStream out = new FileOutputStream(FILE);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    fd = AIO.open(FILE, AIO.O_RDONLY | AIO.O_DIRECT);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    AIO.close(fd);
+  }
+
+  private static byte[] readToEnd(SequentialReader reader) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer chunk;
+    while ((chunk = reader.next()) != null) {
+      byte[] bytes = new byte[chunk.remaining()];
+      chunk.get(bytes);
+      out.write(bytes);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testReadsWholeFile() throws IOException {
+    SequentialReader reader = new SequentialReader(fd, 0, CHUNK, BLOCK, 2, 8);
+    try {
+      assertArrayEquals("content", content, readToEnd(reader));
+      assertTrue(reader.isSequential());
+      assertEquals(content.length, reader.position());
+      // stays at the end
+      assertNull(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testStartsAtEndOfFile() throws IOException {
+    SequentialReader reader = new SequentialReader(fd, content.length, CHUNK, BLOCK, 2, 8);
+    try {
+      assertNull(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testSeek() throws IOException {
+    SequentialReader reader = new SequentialReader(fd, 0, CHUNK, BLOCK, 2, 8);
+    try {
+      for (int i = 0; i < 4; i++) {
+        reader.next();
+      }
+      assertTrue(reader.isSequential());
+
+      // a seek to the current position keeps the read-ahead
+      reader.seek(reader.position());
+      assertTrue(reader.isSequential());
+
+      // an unaligned seek backwards starts over in random access mode
+      long offset = 3 * CHUNK + 123;
+      reader.seek(offset);
+      assertFalse(reader.isSequential());
+      assertEquals(2, reader.window());
+      assertEquals(offset, reader.position());
+      assertArrayEquals("after seek",
+          Arrays.copyOfRange(content, (int) offset, content.length), readToEnd(reader));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testWindowFollowsLatencyOverConsumeTime() throws IOException {
+    SequentialReader reader = new SequentialReader(fd, 0, CHUNK, BLOCK, 2, 8);
+    try {
+      // a read takes three chunks' worth of consumer time
+      reader.recordLatency(300000);
+      reader.recordConsume(100000);
+      assertEquals(4, reader.adaptWindow());
+
+      // a consumer much faster than the device is capped by the maximum
+      SequentialReader fast = new SequentialReader(fd, 0, CHUNK, BLOCK, 2, 8);
+      try {
+        fast.recordLatency(300000);
+        fast.recordConsume(1000);
+        assertEquals(8, fast.adaptWindow());
+      } finally {
+        fast.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testWindowBacksOffWhenLatencyInflates() throws IOException {
+    SequentialReader reader = new SequentialReader(fd, 0, CHUNK, BLOCK, 2, 8);
+    try {
+      reader.recordLatency(100000);
+      reader.recordConsume(1000);
+      assertEquals(8, reader.adaptWindow());
+
+      // the device queues: each adaptation shrinks the window by one
+      int window = 8;
+      for (int i = 0; i < 20; i++) {
+        reader.recordLatency(2000000);
+        int next = reader.adaptWindow();
+        assertTrue("window grew to " + next, next <= window);
+        window = next;
+      }
+      assertEquals(2, window);
+    } finally {
+      reader.close();
+    }
+  }
+}
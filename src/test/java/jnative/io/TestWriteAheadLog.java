@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.io;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestWriteAheadLog {
+
+  private static byte[] record(int thread, int i) {
+    // odd lengths so records straddle block boundaries
+    byte[] data = new byte[37 + (i % 5) * 101];
+    for (int j = 0; j < data.length; j++) {
+      data[j] = (byte) (thread * 31 + i + j);
+    }
+    return data;
+  }
+
+  @Test
+  public void testGroupCommitAndReopen() throws Exception {
+    final String fileName = ".test-wal";
+    new File(fileName).delete();
+    final Map<Long, byte[]> records = new ConcurrentHashMap<Long, byte[]>();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    final WriteAheadLog log = new WriteAheadLog(fileName, 0, 4096, 4, 1024 * 1024, 1000);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 50; i++) {
+              byte[] data = record(id, i);
+              long end = log.appendAndCommit(ByteBuffer.wrap(data));
+              assertTrue(log.durableOffset() >= end);
+              records.put(end - data.length, data);
+            }
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(error.get());
+    long logEnd = log.durableOffset();
+    log.close();
+    assertTrue(logEnd % 4096 != 0);
+
+    // reopening mid-block must keep the head of that block
+    WriteAheadLog reopened = new WriteAheadLog(fileName, logEnd, 4096, 4, 0, 1000);
+    byte[] tail = record(99, 3);
+    assertEquals(logEnd + tail.length, reopened.appendAndCommit(ByteBuffer.wrap(tail)));
+    records.put(logEnd, tail);
+    reopened.close();
+
+    long total = 0;
+    RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+    try {
+      for (Map.Entry<Long, byte[]> entry : records.entrySet()) {
+        byte[] read = new byte[entry.getValue().length];
+        raf.seek(entry.getKey());
+        raf.readFully(read);
+        assertArrayEquals("record at " + entry.getKey(), entry.getValue(), read);
+        total += read.length;
+      }
+    } finally {
+      raf.close();
+    }
+    assertEquals(logEnd + tail.length, total);
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCRC32C {
+
+  @Test
+  public void testCheckValue() {
+    ByteBuffer buf = ByteBuffer.allocateDirect(16);
+    buf.put("123456789".getBytes());
+    buf.flip();
+    assertEquals(0xE3069283, CRC32C.compute(buf));
+  }
+
+  @Test
+  public void testUpdateIsIncremental() {
+    ByteBuffer buf = AlignedBuffers.allocate(4096, 4096);
+    for (int i = 0; i < buf.capacity(); i++) {
+      buf.put(i, (byte) (i * 31));
+    }
+    long address = AlignedBuffers.address(buf);
+    // odd split points exercise the unaligned head and tail paths
+    int crc = CRC32C.update(0, address, 13);
+    crc = CRC32C.update(crc, address + 13, 4096 - 13);
+    assertEquals(CRC32C.compute(address, 4096), crc);
+  }
+
+  @Test
+  public void testTableMatchesActiveImplementation() {
+    ByteBuffer buf = AlignedBuffers.allocate(4096, 4096);
+    for (int i = 0; i < buf.capacity(); i++) {
+      buf.put(i, (byte) (i * 131 + 7));
+    }
+    long address = AlignedBuffers.address(buf);
+    ByteBuffer check = ByteBuffer.allocateDirect(16);
+    check.put("123456789".getBytes());
+    assertEquals(0xE3069283, CRC32C.updateTable(0, AlignedBuffers.address(check), 9));
+    // every head alignment and tail length around the 8 byte words
+    for (int offset = 0; offset < 16; offset++) {
+      for (int length = 0; length < 64; length++) {
+        assertEquals(CRC32C.update(0, address + offset, length),
+            CRC32C.updateTable(0, address + offset, length));
+      }
+    }
+    assertEquals(CRC32C.compute(address, 4096), CRC32C.updateTable(0, address, 4096));
+  }
+}
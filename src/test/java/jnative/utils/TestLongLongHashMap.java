@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jnative.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestLongLongHashMap {
+
+  @Test
+  public void testAgainstHashMap() {
+    LongLongHashMap map = new LongLongHashMap(1000, -1L);
+    Map<Long, Long> expected = new HashMap<Long, Long>();
+    Random random = new Random(42);
+    try {
+      for (int i = 0; i < 100000; i++) {
+        // small key range so that puts, updates and removes all collide
+        long key = random.nextInt(2000) - 10;
+        if (random.nextBoolean() && (expected.size() < 1000 || expected.containsKey(key))) {
+          long value = random.nextLong();
+          Long previous = expected.put(key, value);
+          assertEquals(previous == null ? -1L : previous, map.put(key, value));
+        } else {
+          Long previous = expected.remove(key);
+          assertEquals(previous == null ? -1L : previous, map.remove(key));
+        }
+        assertEquals(expected.size(), map.size());
+      }
+      for (long key = -10; key < 1990; key++) {
+        Long value = expected.get(key);
+        assertEquals(value != null, map.containsKey(key));
+        assertEquals(value == null ? -1L : value, map.get(key));
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFull() {
+    LongLongHashMap map = new LongLongHashMap(4, 0L);
+    try {
+      for (long key = 0; key < 5; key++) {
+        map.put(key, key);
+      }
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void testIntIntHashMap() {
+    IntIntHashMap map = new IntIntHashMap(16, -1);
+    try {
+      for (int fd = 0; fd < 16; fd++) {
+        assertEquals(-1, map.put(fd, fd * 10));
+      }
+      assertEquals(30, map.remove(3));
+      assertFalse(map.containsKey(3));
+      assertEquals(150, map.get(15));
+      assertEquals(15, map.size());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test
+  public void testSlotTable() {
+    IntObjectSlotTable<String> table = new IntObjectSlotTable<String>(4);
+    try {
+      int slot = table.put(7, "seven");
+      assertEquals(slot, table.put(7, "SEVEN"));
+      assertSame("SEVEN", table.getSlot(slot));
+      assertEquals(7, table.keyAt(slot));
+      assertEquals("SEVEN", table.remove(7));
+      assertNull(table.get(7));
+      for (int fd = 0; fd < 4; fd++) {
+        table.put(fd, "fd" + fd);
+      }
+      assertEquals(4, table.size());
+      assertTrue(table.slotOf(2) >= 0);
+    } finally {
+      table.free();
+    }
+  }
+}